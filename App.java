@@ -12,6 +12,15 @@ The 3 planes of the color space have separate signatures calculated that are com
 
 Gray images are converted to color space to continue processing that way.
 
+The signatures are kept in the H2 database "signature" between runs. Only new or changed (size or
+modified time) files are read again, files no longer found are removed, and files that couldn't be
+read aren't tried again until they change. The index is started fresh if the search directory or
+signature parameters change or -DnewIndex is specified.
+
+The verified similar pairs are kept too so a later run only compares the new or changed images with
+all the images; the pairs of earlier runs are reported again without recomputing them unless the
+comparison parameters (maxDifferences, mssim, features) change.
+
 Example:java -cp Similar.jar app.App "images path" (if libraries not necessarily included in the jar)
 Example:java -jar Similar.jar "images path" (if all libraries included in the jar)
 no refined mssim comparison
@@ -76,6 +85,21 @@ rem java -Dmssim=0.75 -jar Similar.jar "C:\\Users\\Public\\Pictures"
 rem java -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
 rem java -DnoDisplay -DsignatureOut -jar Similar.jar "C:\\Users\\Public\\Pictures"
 rem java -DmaxDifferences=20 -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dthreads -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java --add-modules jdk.incubator.vector -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dcompare=index -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dcompare=blocked -DmemoryBudget=1024 -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -DcompareThreads=8 -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dmssim=0.5 -DthumbnailCache=1024 -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dmssim=0.5 -DnoThumbnailStore -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dmssim=0.5 -DmssimCheck -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dmssim=0.5 -Dfeatures=10 -DdescriptorCache=1024 -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dmssim=0.5 -DfeatureMatcher=orb -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dmssim=0.5 -Dgroups=skip -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dmssim=0.5 -DverifyOrder=path -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dcoordinator -DlocalWorkers=4 -DshardSize=10000 -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
+rem java -Dworker=coordinatorhost:5705 -jar Similar.jar
+rem java -DsignatureSize=16 -DnoDisplay -jar Similar.jar "C:\\Users\\Public\\Pictures"
 
 pause
 rem OPENCV_LOG_LEVEL=e or 2 
@@ -85,6 +109,10 @@ rem to compile out anything at that and before that logging level
 
 package app;
 
+import static app.ImageSignature.NOT_INDEXED;
+
+import app.ImageSignature.IndexedFile;
+
 import org.h2.tools.DeleteDbFiles;
 
 import org.opencv.core.Core;
@@ -93,21 +121,38 @@ import org.opencv.core.Mat;
 import org.opencv.imgcodecs.Imgcodecs;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class App {
 
@@ -126,16 +171,21 @@ public class App {
 
   static final App x = new App();
   static Connection conn;
-  static Statement statementInsert; // filling the database with jpg filenames
-  static PreparedStatement statementInner; // inner loop of subsequent filenames
-  static Statement statementOuter; // outer loop of all filenames
+  static SignatureWriter signatureWriter; // filling the database with jpg filenames
+  static PreparedStatement statementInner; // filenames of similar images
+  static Statement statementOuter; // index maintenance
+  static PreparedStatement savePair; // verified pairs kept for later runs
+  static PreparedStatement saveRetry; // pairs that couldn't be verified, tried again next run
+  static VerifyPipeline verifyPipeline; // verifies the similar signatures found by the comparison
+  static int savedPairs;
 
-  static int id = 0;
+  static final AtomicInteger id = new AtomicInteger(); // last file number used as primary key in DB
 
   //////////////////////////////////////////////////
   // U S E R  S E T T A B L E   P A R A M E T E R S
 
   static String imageDirectory; // start search directory (*.jpg files selected)
+  static String[] queryFiles; // images to look up in the signature index instead of searching a directory
   // B&W images forced BW = true; color images have the choice B&W, color, or both
   // at least one must be true - no validation
   static final boolean BW = true; // compares channel 0 - Y of YUV
@@ -169,28 +219,114 @@ public class App {
 
   // ! create file for the messages
 
-  // Create a stream to hold the OpenCV imread err output
-  static ByteArrayOutputStream baos = new ByteArrayOutputStream();
-  static PrintStream ps = new PrintStream(baos);
-  static PrintStream realErr = System.err; // the normal err output when not doing imread
+  // parallel ingest - number of threads reading images and computing signatures
+  static int threads = 1;
+  static int walkThreads = 4; // threads searching directories
+  static BlockingQueue<IndexedFile> foundFiles; // files found by the walk waiting for a signature
+  static Thread[] ingestWorkers;
+  static final IndexedFile END_OF_WALK = new IndexedFile(0, null, 0, 0, NOT_INDEXED);
+  static int batchSize = 1000; // signatures inserted in each DB transaction
+
+  // parallel comparison of all the signature pairs
+  static int compareThreads = 1;
+  static int tileSize; // rows and columns of the pair matrix in a tile; 0 sized for the cache
+  static int verifyThreads = 1; // threads verifying similar signatures with MSSIM and SIFT
+  static boolean verifyByPath; // verify the pairs in path order of their images instead of as found
+  static boolean vectorKernel; // compare with the Vector API kernel if jdk.incubator.vector is available
+  static boolean compareIndex; // find the similar pairs with the chunk index instead of comparing all pairs
+  static boolean compareBlocked; // compare all pairs in blocks from disk within memoryBudget
+  static long memoryBudget = 256L << 20; // bytes of signatures and similar pairs in memory for compareBlocked
+  static boolean coordinator; // hand the comparison out in shards to worker processes
+  static int coordinatorPort = ShardCoordinator.DEFAULT_PORT; // listening for workers
+  static int localWorkers; // worker processes started on this machine by the coordinator
+  static int shardSize = 10000; // signatures in each block of a shard
+  static String workerOf; // host:port of the coordinator when running as a worker
+  static SimilarGroups groups; // similar images gathered into groups; null if only pairs are reported
+  static boolean groupSkip; // pairs of images already in the same group aren't verified
+  static ThumbnailCache thumbnails; // MSSIM thumbnails and statistics of the images verified recently
+  static boolean useThumbnailStore; // keep the MSSIM thumbnails made during ingest for verification
+  static ThumbnailStore thumbnailStore; // MSSIM thumbnails of the indexed images; null if not used
+
+  // persistent signature index - the Signature table is kept between runs and only new or
+  // changed files are read again
+  static boolean newIndex; // user specified switch to delete the index and start fresh
+  static Map<String, IndexedFile> indexedFiles; // files in the index not yet found by this walk
+  static final Set<String> filesSeen = ConcurrentHashMap.newKeySet(); // canonical paths; a file and its links are one
+  static final Set<Path> directoriesNotSearched = ConcurrentHashMap.newKeySet(); // their files aren't pruned
+  static final AtomicInteger filesFound = new AtomicInteger(); // image files found by the walk
+  static final AtomicInteger filesUnchanged = new AtomicInteger(); // image files found that are already in the index
+
+  // decode JPEG files at reduced resolution for the signature
+  static boolean reducedDecode;
+  // also decode full size and check the signatures are within ReducedDecode.TOLERANCE
+  static boolean reducedDecodeCheck;
+  // also compute each MSSIM with OpenCV Mats from the image files and check they agree
+  static boolean mssimCheck;
+
   static FeatureMatching matchFeatures = new FeatureMatching();
+  static DescriptorCache descriptors; // feature descriptors of the images that needed the features check
+  static QueryImage queryImage; // of the -Dquery whose hits are being verified; null otherwise
+  static long descriptorCache = 256L << 20; // bytes of descriptors kept in memory
 
   public static void main(String[] args) throws Exception {
 
-    if(args.length > 0) {
+    if(args.length > 0 && System.getProperty("query") != null) {
+      queryFiles = args;
+      System.out.println("Query " + args.length + " images against the signature index [-Dquery]");
+    }
+    else if(args.length > 0) {
       imageDirectory =  args[0];
       System.out.println("Searching JPG files starting in " + imageDirectory);
     }
+    else if(System.getProperty("worker") != null) {
+      workerOf = System.getProperty("worker");
+      System.out.println("Comparing shards for the coordinator at " + workerOf + " [-Dworker=<host>:<port>]");
+    }
     else {
       System.out.println(
         "java -cp Similar.jar -DsignatureOut -DnoDisplay -Dmssim=<double value> -Dfeatures=<integer value> app.App \"search path\"\n"
          + "java -DsignatureOut -DnoDisplay -Dmssim=<double value> -jar Similar.jar \"search path\"\n"
+        + "java -Dquery -DnoDisplay -Dmssim=<double value> -jar Similar.jar \"image file\" ...\n"
+        + "java -Dworker=<host>:<port> -jar Similar.jar\n"
         + "-DsignatureOut optional create vector file output\n"
+        + "-Dquery optional find the images in the signature index of a previous run similar to the image files\n"
         + "-DnoDisplay optional suppress display of similar image pairs\n"
         + "-DmaxDifferences optional number of differences to be considered similar\n"
         + "         [default 12, very similar; 20 is somewhat similar; 0 is essentially identical]\n"
+        + "         [defaults scaled to the signature size, 48 for -DsignatureSize=16]\n"
+        + "-DsignatureSize=<integer value> optional signature is size x size bits per channel\n"
+        + "         [default 8 (64 bits); 16 (256 bits) is more discriminating; at most 160]\n"
         + "-Dmssim=<double value> optional refined similarity check [0.0 dissimilar to 1.0 essentially identical]\n"
         + "-Dfeatures=<integer value> minimum number of SIFT features to declare similarity if MSSIM indicates dissimilar\n"
+        + "         [default 10; 20 for -DfeatureMatcher=orb]\n"
+        + "-DfeatureMatcher=orb optional match features with ORB on shrunk images, much faster than SIFT but less accurate\n"
+        + "-DreducedDecode optional decode large JPEG files at 1/2, 1/4 or 1/8 resolution for faster signatures\n"
+        + "-DreducedDecodeCheck optional as -DreducedDecode and check the signatures against full resolution\n"
+        + "-DnewIndex optional delete the signature index of previous runs and read all images again\n"
+        + "-DcompareThreads=<integer value> optional number of threads comparing signatures [default all cores]\n"
+        + "-Dkernel=scalar optional compare signatures with Long.bitCount instead of the Vector API\n"
+        + "         [the Vector API needs vector/VectorHamming.java compiled on JDK 16+ and java --add-modules jdk.incubator.vector]\n"
+        + "-Dcompare=index optional find similar signatures with a chunk index instead of comparing all pairs\n"
+        + "         [same pairs found; much faster for many images and small -DmaxDifferences]\n"
+        + "-Dcompare=blocked optional compare all pairs in blocks from disk for collections larger than memory\n"
+        + "-DmemoryBudget=<integer value> optional MB of signatures and pairs in memory for -Dcompare=blocked [default 256]\n"
+        + "-DverifyThreads=<integer value> optional number of threads verifying similar signatures [default all cores]\n"
+        + "-DverifyOrder=path optional verify all the pairs of an image together in path order so it's read once\n"
+        + "         [all the similar signatures are found before any are verified; not for -Dcompare=blocked]\n"
+        + "-Dgroups optional also write the groups of similar images to similarGroups.txt, one group to a line\n"
+        + "-Dgroups=skip optional as -Dgroups and don't verify pairs of images already in the same group\n"
+        + "-DthumbnailCache=<integer value> optional MB of MSSIM thumbnails and statistics kept so images aren't read again [default 256]\n"
+        + "-DnoThumbnailStore optional don't keep the MSSIM thumbnails of the images read in signature.thumbnails\n"
+        + "-DmssimCheck optional check each MSSIM against OpenCV's from the image files [slow; for testing]\n"
+        + "-DdescriptorCache=<integer value> optional MB of SIFT descriptors kept in memory; all are kept in the DB [default 256]\n"
+        + "-Dcoordinator=<integer value> optional hand the comparison out in shards to worker processes on this port [default 5705]\n"
+        + "-DlocalWorkers=<integer value> optional number of worker processes the coordinator starts on this machine [default 0]\n"
+        + "-DshardSize=<integer value> optional signatures in each block of a coordinator's shards [default 10000]\n"
+        + "-Dworker=<host>:<port> optional compare and verify shards for a coordinator; needs the images at the same paths\n"
+        + "-DtileSize=<integer value> optional signatures in each side of a compared tile [default sized for the L1 cache]\n"
+        + "-DwalkThreads=<integer value> optional number of directories searched at the same time [default 4]\n"
+        + "-DbatchSize=<integer value> optional number of signatures inserted in each DB transaction [default 1000]\n"
+        + "-Dthreads=<integer value> optional number of threads computing signatures [default 1; no value is all cores]\n"
         + "basic fast check example:java -cp  Similar.jar app.App \"C:\\Users\\Public\\Pictures\"\n"
         + "basic fast check example:java -jar Similar.jar         \"C:\\Users\\Public\\Pictures\"\n"
         + "eliminate many false similar images example:\"\n"
@@ -199,22 +335,46 @@ public class App {
       return;
     }
 
+    if(System.getProperty("signatureSize") != null) {
+      GripPipelineSimilar.signatureSize = Integer.parseInt(System.getProperty("signatureSize"));
+      if (GripPipelineSimilar.signatureSize < 1 || GripPipelineSimilar.signatureSize > GripPipelineSimilar.MAX_SIGNATURE_SIZE) {
+        System.out.println("-DsignatureSize=<integer value> optional signature is size x size bits per channel\n"
+          + "         [1 to " + GripPipelineSimilar.MAX_SIGNATURE_SIZE + ", the size it's resized from; "
+          + GripPipelineSimilar.signatureSize + " isn't]");
+        return;
+      }
+    }
+    else {
+      GripPipelineSimilar.signatureSize = 8;
+    }
+    System.out.println("Signature of " + GripPipelineSimilar.signatureBits() + " bits per channel [-DsignatureSize="
+      + GripPipelineSimilar.signatureSize + "]");
+
     if(System.getProperty("maxDifferences") != null) {
       maxDifferences = Integer.parseInt(System.getProperty("maxDifferences"));
     }
     else {
-      maxDifferences = 12;
+      maxDifferences = 12 * GripPipelineSimilar.signatureBits() / 64; // same fraction of the bits as 12 of 64
       System.out.println("max differences not specified; using default");
     }
     System.out.println("max differences to be considered similar = " + maxDifferences);
 
+    matchFeatures = FeatureMatching.create(System.getProperty("featureMatcher"));
+    if(matchFeatures instanceof OrbMatching) {
+      System.out.println("Features matched with ORB descriptors on images of at most " + OrbMatching.MAX_SIZE
+        + " pixels [-DfeatureMatcher=orb]");
+    }
+    else {
+      System.out.println("Features matched with SIFT descriptors [-DfeatureMatcher=orb not specified]");
+    }
+
     if(System.getProperty("features") != null) {
       features = Integer.parseInt(System.getProperty("features"));
     }
     else {
-      features = 10;
+      features = matchFeatures.defaultFeatures(); // the counts differ for each kind of descriptor
     }
-    System.out.println("min number of SIFT features to be considered similar if MSSIM indicates dissimilar = " + features);
+    System.out.println("min number of " + matchFeatures.name().toUpperCase() + " features to be considered similar if MSSIM indicates dissimilar = " + features);
 
     if(System.getProperty("mssim") != null) {
       doMSSIM = true;
@@ -238,6 +398,23 @@ public class App {
       + "Q or q stops display of subsequent similar images;\nlog file of all similar images is completed, however.\n");
     }
 
+    if(System.getProperty("batchSize") != null) {
+      batchSize = Integer.parseInt(System.getProperty("batchSize"));
+    }
+    else {
+      batchSize = 1000;
+    }
+    System.out.println("Signatures inserted in the DB in transactions of " + batchSize + " [-DbatchSize=<integer value>]");
+
+    if(System.getProperty("newIndex") != null) {
+      newIndex = true;
+      System.out.println("Signature index deleted and all images read [-DnewIndex]");
+    }
+    else {
+      newIndex = false;
+      System.out.println("Signature index of previous run reused for unchanged images [-DnewIndex not specified]");
+    }
+
     if(System.getProperty("signatureOut") != null) {
       kohRun = true;
       System.out.println("Create signature vector file [-DsignatureOut]");
@@ -247,6 +424,165 @@ public class App {
       System.out.println("Signature vector file not created [-DsignatureOut not specified]");
     }
 
+    if(System.getProperty("threads") != null) {
+      threads = System.getProperty("threads").isEmpty() ? Runtime.getRuntime().availableProcessors()
+        : Integer.parseInt(System.getProperty("threads"));
+      System.out.println("Signatures computed in parallel [-Dthreads=<integer value>] threads = " + threads);
+    }
+    else {
+      threads = 1;
+      System.out.println("Signatures computed one at a time [-Dthreads not specified]");
+    }
+
+    if(System.getProperty("compareThreads") != null) {
+      compareThreads = Integer.parseInt(System.getProperty("compareThreads"));
+    }
+    else {
+      compareThreads = Runtime.getRuntime().availableProcessors();
+    }
+    System.out.println("Signatures compared in parallel [-DcompareThreads=<integer value>] threads = " + compareThreads);
+
+    if(System.getProperty("verifyThreads") != null) {
+      verifyThreads = Integer.parseInt(System.getProperty("verifyThreads"));
+    }
+    else {
+      verifyThreads = Runtime.getRuntime().availableProcessors();
+    }
+    System.out.println("Similar signatures verified in parallel [-DverifyThreads=<integer value>] threads = "
+      + verifyThreads);
+
+    if("path".equals(System.getProperty("verifyOrder"))) {
+      verifyByPath = true;
+      System.out.println("Similar signatures verified in path order of the images [-DverifyOrder=path]");
+    }
+    else {
+      verifyByPath = false;
+      System.out.println("Similar signatures verified in the order found [-DverifyOrder=path not specified]");
+    }
+
+    long thumbnailCache = 256L << 20;
+    if(System.getProperty("thumbnailCache") != null) {
+      thumbnailCache = Long.parseLong(System.getProperty("thumbnailCache")) << 20;
+    }
+    thumbnails = new ThumbnailCache(thumbnailCache);
+    if(doMSSIM) {
+      System.out.println("MSSIM thumbnails cached [-DthumbnailCache=<integer MB>] = " + (thumbnailCache >> 20) + " MB");
+    }
+
+    if(System.getProperty("descriptorCache") != null) {
+      descriptorCache = Long.parseLong(System.getProperty("descriptorCache")) << 20;
+    }
+    descriptors = new DescriptorCache(matchFeatures, descriptorCache);
+    if(doMSSIM) {
+      System.out.println(matchFeatures.name().toUpperCase() + " descriptors cached [-DdescriptorCache=<integer MB>] = " + (descriptorCache >> 20) + " MB");
+    }
+
+    if(System.getProperty("noThumbnailStore") != null) {
+      useThumbnailStore = false;
+      System.out.println("MSSIM thumbnails read from the image files [-DnoThumbnailStore]");
+    }
+    else {
+      useThumbnailStore = doMSSIM;
+      if(doMSSIM) {
+        System.out.println("MSSIM thumbnails kept in " + ThumbnailStore.STORE_FILE + " [-DnoThumbnailStore not specified]");
+      }
+    }
+
+    mssimCheck = doMSSIM && System.getProperty("mssimCheck") != null;
+    if(mssimCheck) {
+      System.out.println("MSSIM checked against OpenCV from the image files [-DmssimCheck]");
+    }
+
+    if(System.getProperty("tileSize") != null) {
+      tileSize = Integer.parseInt(System.getProperty("tileSize"));
+      System.out.println("Signature pairs compared in tiles of " + tileSize + " [-DtileSize=<integer value>]");
+    }
+    else {
+      tileSize = 0;
+    }
+
+    if("scalar".equals(System.getProperty("kernel"))) {
+      vectorKernel = false;
+      System.out.println("Signatures compared with the scalar kernel [-Dkernel=scalar]");
+    }
+    else {
+      vectorKernel = true;
+      System.out.println("Signatures compared with the Vector API kernel if available [-Dkernel=scalar not specified]");
+    }
+
+    compareIndex = "index".equals(System.getProperty("compare"));
+    compareBlocked = "blocked".equals(System.getProperty("compare"));
+    if(compareIndex) {
+      System.out.println("Similar signatures found with a chunk index [-Dcompare=index]");
+    }
+    else if(compareBlocked) {
+      System.out.println("All pairs of signatures compared in blocks from disk [-Dcompare=blocked]");
+    }
+    else {
+      System.out.println("All pairs of signatures compared [-Dcompare=index or blocked not specified]");
+    }
+
+    if(System.getProperty("memoryBudget") != null) {
+      memoryBudget = Long.parseLong(System.getProperty("memoryBudget")) << 20;
+    }
+    else {
+      memoryBudget = 256L << 20;
+    }
+    if(compareBlocked) {
+      System.out.println("Blocked comparison memory budget [-DmemoryBudget=<integer MB>] = " + (memoryBudget >> 20) + " MB");
+    }
+
+    if(System.getProperty("coordinator") != null) {
+      coordinator = true;
+      coordinatorPort = ShardCoordinator.port(System.getProperty("coordinator"));
+      localWorkers = System.getProperty("localWorkers") != null ? Integer.parseInt(System.getProperty("localWorkers")) : 0;
+      shardSize = System.getProperty("shardSize") != null ? Integer.parseInt(System.getProperty("shardSize")) : 10000;
+      System.out.println("Comparison handed out to workers [-Dcoordinator=<port>] on port " + coordinatorPort
+        + ", local workers [-DlocalWorkers=<integer value>] " + localWorkers + ", shards of blocks of [-DshardSize=<integer value>] "
+        + shardSize);
+    }
+    else {
+      coordinator = false;
+    }
+
+    if(System.getProperty("groups") != null) {
+      groups = new SimilarGroups();
+      // the workers of a coordinator don't see each other's groups so verify every pair
+      groupSkip = "skip".equals(System.getProperty("groups")) && !coordinator && workerOf == null;
+      System.out.println("Similar images grouped in " + SimilarGroups.GROUPS_FILE + " [-Dgroups]"
+        + (groupSkip ? ", pairs already in a group not verified [-Dgroups=skip]" : ""));
+    }
+    else {
+      groupSkip = false;
+      System.out.println("Similar images reported in pairs [-Dgroups not specified]");
+    }
+
+    if(System.getProperty("walkThreads") != null) {
+      walkThreads = Integer.parseInt(System.getProperty("walkThreads"));
+    }
+    else {
+      walkThreads = 4;
+    }
+    System.out.println("Directories searched in parallel [-DwalkThreads=<integer value>] threads = " + walkThreads);
+
+    if(System.getProperty("reducedDecode") != null || System.getProperty("reducedDecodeCheck") != null) {
+      reducedDecode = true;
+      reducedDecodeCheck = System.getProperty("reducedDecodeCheck") != null;
+      System.out.println("JPEG files decoded at reduced resolution for signatures [-DreducedDecode]"
+        + (reducedDecodeCheck ? " and checked against full resolution [-DreducedDecodeCheck]" : ""));
+    }
+    else {
+      reducedDecode = false;
+      reducedDecodeCheck = false;
+      System.out.println("Images decoded at full resolution for signatures [-DreducedDecode not specified]");
+    }
+
+    if (workerOf != null) {
+      // no DB or output files; the coordinator sends the signatures and keeps the results
+      new ShardWorker(HammingKernel.create(vectorKernel), tileSize, compareThreads, verifyThreads).run(workerOf);
+      System.exit(0);
+    }
+
     fout = new FileOutputStream("similarImages.txt");
     similarFiles = new PrintStream(fout);
 
@@ -256,32 +592,71 @@ public class App {
       kohVectors = new PrintStream(koh);
     }
 
-    System.setErr(realErr);
-
-    DeleteDbFiles.execute("./", "signature", true); // DELETE DB - fresh start for this run
+    if (newIndex && queryFiles == null) {
+      DeleteDbFiles.execute("./", "signature", true); // DELETE DB - fresh start for this run
+    }
 
     Class.forName("org.h2.Driver");
     conn = DriverManager.getConnection("jdbc:h2:./signature"); // also url, userid, password
 
-    statementInsert = conn.createStatement();
     statementOuter = conn.createStatement();
 
-    statementOuter.execute(
-        "create table Signature(id int primary key,"
-              + "signature1 long,signature2 long,signature3 long,"
-              + "filename varchar)"); // CREATE DB
+    if (queryFiles != null) {
+      if (useThumbnailStore && new File(ThumbnailStore.STORE_FILE).exists()) {
+        thumbnailStore = new ThumbnailStore(new File(ThumbnailStore.STORE_FILE));
+        thumbnails.use(thumbnailStore);
+      }
+      x.query(queryFiles); // look up the images in the index of a previous run
+      if (thumbnailStore != null) {
+        thumbnailStore.close();
+      }
+      statementOuter.close();
+      conn.close();
+      System.exit(0);
+    }
+
+    openIndex(); // CREATE DB or reuse the signatures from previous runs
+
+    if (useThumbnailStore) {
+      // the ingest writes the thumbnails of the images it reads; verification reads them
+      thumbnailStore = new ThumbnailStore(new File(ThumbnailStore.STORE_FILE));
+      thumbnails.use(thumbnailStore);
+    }
+
+    signatureWriter = new SignatureWriter(batchSize, threads * 4);
+    x.startIngest();
 
-    Filewalker fw = x.new Filewalker(); // SEARCH FOR FILES and DIRECTORIES
+    Filewalker fw = x.new Filewalker(walkThreads); // SEARCH FOR FILES and DIRECTORIES
     fw.walk(imageDirectory); // search for and compress images
 
-    statementInsert.close();
+    finishIngest();
+
+    signatureWriter.close();
+
+    pruneIndex(); // files that weren't found have been deleted
 
     System.out.println();
+    System.out.println("Image files found " + filesFound + ", unchanged " + filesUnchanged + ", new or changed "
+      + (filesFound.get() - filesUnchanged.get()));
+    if (kohRun) {
+      writeKohonenVectors();
+    }
+    if (reducedDecodeCheck) {
+      System.out.println(ReducedDecode.report());
+    }
+    int imagesRead = filesFound.get() - filesUnchanged.get();
+    if (imagesRead > 0) {
+      System.out.format("Signature pipeline native allocations %d, %.2f per image read\n",
+        GripPipelineSimilar.nativeAllocations(), (double) GripPipelineSimilar.nativeAllocations() / imagesRead);
+    }
     // System.out.println("Free memory after reading all files " +
     // Runtime.getRuntime().freeMemory());
 
     x.findSimilarImages();
 
+    if (thumbnailStore != null) {
+      thumbnailStore.close();
+    }
     statementInner.close();
     statementOuter.close();
     conn.close();
@@ -290,170 +665,491 @@ public class App {
 
   public class Filewalker {
 
+    private final ForkJoinPool pool;
+
+    /**
+     * @param walkThreads number of directories searched at the same time
+     */
+    Filewalker(int walkThreads) {
+      pool = new ForkJoinPool(walkThreads);
+    }
+
     /**
-     * Called recursively for subdirectories
+     * Search the tree for image files, subdirectories in parallel, and hand each file to the
+     * ingest stage as soon as it's found
      * @param path Starting path that is searched to the end of the tree
+     * @throws IOException
      */
-    public void walk(String path) {
-
-      File root = new File(path);
-
-      // Create a FilenameFilter
-      FileFilter filter = new FileFilter() {
-        public boolean accept(File file) // or accept(File f, String name)
-        {
-          // System.out.print(file.isDirectory()?"DIR: ":file.isFile()?"FILE: ":"NONE");
-          // System.out.println(file + " <> " + file.getAbsoluteFile() + "{}" +
-          // file.getAbsolutePath());
-
-          return
-            file.isDirectory() // process all directories
-             ||
-            (file.canRead() // process selected readable image files
-              &&
-              ( // ending with: 
-                (file.getName().length() >= 4
-                  && 
-                  (file.getName().substring(file.getName().length() - 4).equalsIgnoreCase(".JPG")
-                  ||
-                  file.getName().substring(file.getName().length() - 4).equalsIgnoreCase(".PNG"))
-                )
-                ||
-                (file.getName().length() >= 5
-                  &&
-                  file.getName().substring(file.getName().length() - 5).equalsIgnoreCase(".JPEG")
-                )
-              )
-            );
-        }
-      };
-      // ! Create a FilenameFilter
+    public void walk(String path) throws IOException {
+      try {
+        pool.invoke(new DirectoryWalk(Paths.get(path).toRealPath()));
+      } finally {
+        pool.shutdown();
+      }
+    }
 
-      File[] list = root.listFiles(filter);
+    /**
+     * Search one directory and fork the search of its subdirectories. The file attributes come
+     * with the directory read so there isn't a separate look at each file just to find out what
+     * it is. Symbolic links to files are followed; symbolic links to directories are not.
+     */
+    class DirectoryWalk extends RecursiveAction {
+      private static final long serialVersionUID = 1L;
+      private final Path directory; // real path so the files' paths are canonical
 
-      if (list == null)
-        return;
+      DirectoryWalk(Path directory) {
+        this.directory = directory;
+      }
 
-      for (File file : list) {
-        if (file.isDirectory()) {
-          walk(file.getAbsolutePath()); // recursive invocation to subdirectory
-          // System.out.println( "Dir:" + file.getAbsoluteFile() );
-        } else {
-          // process this file - get its signature
-          id++; // count file number used as primary key in DB
-          System.out.format("\r%d >%s<                          ", id, file.getAbsoluteFile().toString());
-          new CompressImage().run(file.getAbsoluteFile().toString());
+      @Override
+      protected void compute() {
+        List<DirectoryWalk> subdirectories = new ArrayList<DirectoryWalk>();
+        try {
+          Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+              if (attrs.isDirectory()) {
+                subdirectories.add(new DirectoryWalk(file));
+              }
+              else if (isImage(file.getFileName().toString())) {
+                if (attrs.isSymbolicLink()) {
+                  try {
+                    file = file.toRealPath();
+                    attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                  } catch (IOException e) {
+                    return FileVisitResult.CONTINUE; // dangling link; its target, if indexed, is gone
+                  }
+                }
+                if (attrs.isRegularFile()) {
+                  try {
+                    found(file.toString(), attrs.size(), attrs.lastModifiedTime().toMillis());
+                  } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return FileVisitResult.TERMINATE;
+                  }
+                }
+              }
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+              if (file.equals(directory)) {
+                notSearched(e); // can't list it
+              }
+              return FileVisitResult.CONTINUE; // can't get at it so skip it
+            }
+          });
+        } catch (IOException e) {
+          notSearched(e);
         }
+        invokeAll(subdirectories); // recursive invocations in parallel
+      }
+
+      /**
+       * The directory couldn't be listed, maybe only part of it. Its indexed files aren't pruned
+       * since they may still be there.
+       * @param e why
+       */
+      void notSearched(IOException e) {
+        System.err.println("\nCannot search directory " + directory + " " + e);
+        directoriesNotSearched.add(directory);
       }
-      // the end of the file list for this directory
-      // recursive invocations unwind here at the end
+    }
+
+    /**
+     * Selects case insensitive "*.jpg", "*.jpeg", "*.png"
+     * @param name file name
+     * @return true if an image file to process
+     */
+    boolean isImage(String name) {
+      String lowerCase = name.toLowerCase();
+      return lowerCase.endsWith(".jpg") || lowerCase.endsWith(".jpeg") || lowerCase.endsWith(".png");
+    }
+
+    /**
+     * Process an image file found by the walk unless the same version is in the index
+     * @param filename canonical path
+     * @param size file size
+     * @param modified file last modified time
+     * @throws InterruptedException
+     */
+    void found(String filename, long size, long modified) throws InterruptedException {
+      if (!filesSeen.add(filename)) {
+        return; // already found by way of a symbolic link or its target
+      }
+      filesFound.incrementAndGet();
+
+      // skip this file if the same version is in the index; whatever is left in the map at
+      // the end of the walk has been deleted
+      IndexedFile indexed = indexedFiles.remove(filename);
+      if (indexed != null && indexed.sameVersion(size, modified)) {
+        filesUnchanged.incrementAndGet();
+        return;
+      }
+
+      // process this file - get its signature
+      int fileId = id.incrementAndGet(); // count file number used as primary key in DB
+      System.out.format("\r%d >%s<                          ", fileId, filename);
+      foundFiles.put(new IndexedFile(fileId, filename, size, modified, indexed != null ? indexed.id : NOT_INDEXED));
     }
   }
 
   // compute similarity index (short signature as a highly blurred and compressed image)
+  // one for each ingest worker so the pipeline Mats are reused image after image
   class CompressImage {
 
-    public void run(String filename) {
+    private final GripPipelineSimilar signatureImage = new GripPipelineSimilar();
+
+    /**
+     * Read an image and compute its signature. Separate instances are safe to run concurrently;
+     * errors are returned in the result rather than printed so each task captures its own.
+     * @param file image file and its primary key in DB
+     * @return signature or the reason there isn't one
+     */
+    public ImageSignature run(IndexedFile file) {
+      return run(file, null);
+    }
+
+    /**
+     * Read an image and compute its signature
+     * @param file image file and its primary key in DB
+     * @param keep given the full resolution decode to keep and release; null for none
+     * @return signature or the reason there isn't one
+     */
+    ImageSignature run(IndexedFile file, Consumer<Mat> keep) {
+
+      String filename = file.filename;
 
       // [Load image]
       Mat src = null;
-      GripPipelineSimilar signatureImage = null;
+      Mat full = null;
 
       try {
-        System.setErr(ps); // catch any OpenCV imread errors - redirect System.err in a string
+        int flag = reducedDecode ? ReducedDecode.imreadFlag(filename) : Imgcodecs.IMREAD_UNCHANGED;
+        src = Imgcodecs.imread(filename, flag);
 
-        src = Imgcodecs.imread(filename, Imgcodecs.IMREAD_UNCHANGED);
+        // It can fail with Mat output not being set or 0 length, or Exception thrown
+        if (src == null || src.empty()) {
+          return new ImageSignature(file, "Cannot read image but no message or Exception thrown");
+        }
+        // ! [Load image]
 
-        System.err.flush();
+        // the MSSIM thumbnail while the image is decoded; a reduced decode would give a slightly
+        // different thumbnail so those are added when they're first verified
+        if (thumbnailStore != null && flag == Imgcodecs.IMREAD_UNCHANGED) {
+          Mat thumbnail = MSSIM.thumbnail(src);
+          try {
+            thumbnailStore.put(file.id, file.size, file.modified, thumbnail);
+          } catch (IOException e) {
+            System.err.println("Cannot write thumbnail " + file.id + " to " + ThumbnailStore.STORE_FILE + " " + e);
+          }
+          thumbnail.release();
+        }
 
-        System.setErr(realErr); // back to normal System.err
+        // a copy since the signature makes a gray image color in place
+        if (keep != null) {
+          keep.accept(flag == Imgcodecs.IMREAD_UNCHANGED ? src.clone()
+            : Imgcodecs.imread(filename, Imgcodecs.IMREAD_UNCHANGED));
+        }
 
-        // check for any errors from the imread err string
-        // It can fail with a message to System.err, Mat output not being set or 0
-        // length, or Exception thrown
-        String OpenCVerr = baos.toString(); // get any OpenCV imread errors
-        if (OpenCVerr.length() > 0) {
-          System.err.println("\n\n\nError found image " + id + " >" + OpenCVerr + "<\n\n\n");
-          baos.reset(); // clear error so we don't see it again
-          return;
+        long[][] hash = computeHash(src);
+
+        if (reducedDecodeCheck && flag != Imgcodecs.IMREAD_UNCHANGED) {
+          full = Imgcodecs.imread(filename, Imgcodecs.IMREAD_UNCHANGED);
+          ReducedDecode.check(filename, hash, computeHash(full));
         }
 
-        if (src == null || src.empty()) {
-          System.err.format("\n\n\nCannot read image %d but no message or Exception thrown: %s\n\n\n", id, filename);
-          return;
+        return new ImageSignature(file, hash);
+
+      } catch (Exception e) {
+        return new ImageSignature(file, "Exception thrown " + e.toString());
+      } finally {
+        if(src != null) {
+          src.release();
         }
-        // ! [Load image]
+        if(full != null) {
+          full.release();
+        }
+      }
+      // System.err.print(Runtime.getRuntime().freeMemory() + " ");
+    }
 
-        // [Compute Hash]
-        signatureImage = new GripPipelineSimilar();
+    /**
+     * Compute the signature hash of an image
+     * @param src image
+     * @return 3 channels hash
+     */
+    long[][] computeHash(Mat src) {
 
-        long[] hash = { 0, 0, 0 }; // space for 3 channels
+      // [Compute Hash]
+      // all are or will be color images so there is a choice; process as color or B&W or both?
+      int startChannel = (BW ? 0 : 1);
+      int endChannel = (COLOR ? 2 : 0);
 
-        boolean firstTimeWriteKohID = true;
+      // the 3 image channels Y U V in one pass
+      return signatureImage.process(src, startChannel, endChannel);
+      // ! [Compute Hash]
+    }
 
-        int startChannel;
-        int endChannel;
+    void release() {
+      signatureImage.releaseMats(); // done with the Mats
+    }
+  }
 
-        // all are or will be color images so there is a choice; process as color or B&W or both?
-        startChannel = (BW ? 0 : 1);
-        endChannel = (COLOR ? 2 : 0);
+  /**
+   * Start the threads taking the files found by the walk, computing their signatures and
+   * handing them to the single DB writer. The queue of found files is bounded so the walk
+   * doesn't get far ahead of the image reading.
+   */
+  void startIngest() {
+    foundFiles = new ArrayBlockingQueue<IndexedFile>(threads * 4);
+    ingestWorkers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      ingestWorkers[i] = new Thread(() -> {
+        CompressImage compressImage = new CompressImage();
+        try {
+          IndexedFile file;
+          while ((file = foundFiles.take()) != END_OF_WALK) {
+            signatureWriter.put(compressImage.run(file));
+          }
+        } catch (InterruptedException e) {
+          System.err.println("ingest interrupted " + e);
+        } finally {
+          compressImage.release();
+        }
+      }, "ingest " + i);
+      ingestWorkers[i].start();
+    }
+  }
 
-        for (int channel = startChannel; channel <= endChannel; channel++) {
+  /**
+   * Wait for all the found files to be processed and handed to the DB writer.
+   * @throws InterruptedException
+   */
+  static void finishIngest() throws InterruptedException {
+    for (int i = 0; i < ingestWorkers.length; i++) {
+      foundFiles.put(END_OF_WALK);
+    }
+    for (Thread worker : ingestWorkers) {
+      worker.join();
+    }
+  }
 
-          signatureImage.process(src, channel);
+  /**
+   * Describes everything that determines the signatures. If it differs from the index of the
+   * previous run then the index is discarded.
+   * @return signature parameters
+   */
+  static String signatureFingerprint() {
+    return GripPipelineSimilar.fingerprint() + "; BW " + BW + ", COLOR " + COLOR + ", reduced decode " + reducedDecode;
+  }
 
-          // System.out.println(similarity.cvAdaptivethresholdOutput());
-          int size = (int) signatureImage.cvAdaptivethresholdOutput().total();
+  /**
+   * Open the signature index of previous runs or create a new one. The index is discarded if the
+   * search starts in a different directory or the signatures would be computed differently.
+   * Files in the index are loaded into indexedFiles for the directory walk to check.
+   * @throws SQLException
+   */
+  static void openIndex() throws SQLException {
 
-          if (kohRun && firstTimeWriteKohNumDimensions) {
-            kohVectors.println(size * (endChannel - startChannel + 1));
-            firstTimeWriteKohNumDimensions = false;
-          }
+    statementOuter.execute("create table if not exists Settings(name varchar primary key, setting varchar)");
 
-          byte[] temp = new byte[size];
+    String root;
+    try {
+      root = new File(imageDirectory).getCanonicalPath();
+    } catch (IOException e) {
+      root = new File(imageDirectory).getAbsolutePath();
+    }
+    String fingerprint = signatureFingerprint();
 
-          signatureImage.cvAdaptivethresholdOutput().get(0, 0, temp); //
+    if (!root.equals(getSetting("root")) || !fingerprint.equals(getSetting("fingerprint"))) {
+      if (getSetting("fingerprint") != null) {
+        System.out.println("Signature index is for a different directory or signature parameters; all images read");
+      }
+      statementOuter.execute("drop table if exists SiftDescriptors"); // before the Signature they refer to
+      statementOuter.execute("drop table if exists OrbDescriptors");
+      statementOuter.execute("drop table if exists Signature");
+      statementOuter.execute("drop table if exists Unreadable");
+      statementOuter.execute("drop table if exists SimilarPair");
+      statementOuter.execute("drop table if exists RetryPair");
+      ThumbnailStore.discard(); // kept by id
+      putSetting("comparedId", "0"); // ids start again
+      putSetting("nextId", "1");
+      putSetting("root", root);
+      putSetting("fingerprint", fingerprint);
+    }
 
-          // compress the 64 bits from each channel into 3 longs - hash[0] to hash[2]
-          long mask = 1;
+    statementOuter.execute(
+        "create table if not exists Signature(id int primary key,"
+              + "signature1 varbinary,signature2 varbinary,signature3 varbinary,"
+              + "filename varchar, size bigint, modified bigint)"); // CREATE DB
+    statementOuter.execute("create index if not exists SignatureFilename on Signature(filename)");
+    // images that couldn't be read - not retried until they change
+    statementOuter.execute(
+        "create table if not exists Unreadable(filename varchar primary key, size bigint, modified bigint)");
+
+    indexedFiles = new ConcurrentHashMap<String, IndexedFile>();
+    // ids are never used again, even those of files deleted or unreadable since, so a new file is
+    // always above the comparison watermark and never gets an old file's cached data
+    String nextId = getSetting("nextId");
+    id.set(nextId == null ? 0 : Integer.parseInt(nextId) - 1);
+    try (ResultSet rs = statementOuter.executeQuery("select id, filename, size, modified from Signature")) {
+      while (rs.next()) {
+        IndexedFile file = new IndexedFile(rs.getInt(1), rs.getString(2), rs.getLong(3), rs.getLong(4), NOT_INDEXED);
+        indexedFiles.put(file.filename, file);
+        id.accumulateAndGet(file.id, Math::max); // new files are numbered after all the old ones
+      }
+    }
+    try (ResultSet rs = statementOuter.executeQuery("select filename, size, modified from Unreadable")) {
+      while (rs.next()) {
+        indexedFiles.put(rs.getString(1), new IndexedFile(0, rs.getString(1), rs.getLong(2), rs.getLong(3), NOT_INDEXED));
+      }
+    }
+    System.out.println("Signature index has " + indexedFiles.size() + " files");
+  }
 
-          for (int idx = 0; idx < Math.min(64, temp.length); idx++) {
-            if (kohRun && firstTimeWriteKohID) {
-              kohVectors.println("id" + id + " " + filename); // label for the Kohonen vector - use the file sequence number
-              firstTimeWriteKohID = false;
-            }
-            if (temp[idx] != 0) {
-              hash[channel] = hash[channel] | mask;
-              if (kohRun) {
-                kohVectors.println("1"); // Kohonen output 1 for this dimension
-              }
-            } else {
-              if (kohRun) {
-                kohVectors.println("0"); // Kohonen output 0 for this dimension
-              }
-            }
-            mask = mask << 1;
-          }
-        } // end loop processing the 3 image channels Y U V
+  /**
+   * Remove the files the walk didn't find from the index. Files in directories that couldn't be
+   * searched are kept.
+   * @throws SQLException
+   */
+  static void pruneIndex() throws SQLException {
+    indexedFiles.keySet().removeIf(filename -> directoriesNotSearched.stream().anyMatch(Paths.get(filename)::startsWith));
+    try (PreparedStatement deleteSignature = conn.prepareStatement("delete from Signature where id = ?");
+        PreparedStatement deleteUnreadable = conn.prepareStatement("delete from Unreadable where filename = ?")) {
+      for (IndexedFile file : indexedFiles.values()) {
+        if (file.id == 0) {
+          deleteUnreadable.setString(1, file.filename);
+          deleteUnreadable.execute();
+        }
+        else {
+          deleteSignature.setInt(1, file.id);
+          deleteSignature.execute();
+        }
+      }
+    }
+    if (!indexedFiles.isEmpty()) {
+      System.out.println("\nRemoved from the signature index " + indexedFiles.size() + " files not found");
+    }
+    indexedFiles.clear();
+  }
 
-        statementInsert.execute("insert into Signature values(" + id + ", " + hash[0] + "," + hash[1]
-          + "," + hash[2] + "," + "'" + filename.replace("'", "''") + "')");
+  /**
+   * Start comparing. The verified pairs of earlier runs are kept unless the comparison
+   * parameters changed; pairs of images no longer in the index are removed.
+   * @return watermark; pairs of images with ids up to it have been compared
+   * @throws SQLException
+   */
+  static int openComparison() throws SQLException {
+    statementOuter.execute("create table if not exists SimilarPair(idA int, idB int, similarity int,"
+      + " mssim double, features int, similar boolean, primary key(idA, idB))");
+    // pairs in a group not verified with -Dgroups=skip; kept so the group holds if the images
+    // that joined them are deleted, since the pair won't be compared again
+    statementOuter.execute("alter table SimilarPair add column if not exists inferred boolean default false");
+    // pairs below the watermark whose verification failed, maybe an image couldn't be read then
+    statementOuter.execute("create table if not exists RetryPair(idA int, idB int, similarity int,"
+      + " primary key(idA, idB))");
+
+    String fingerprint = comparisonFingerprint();
+    if (!fingerprint.equals(getSetting("comparisonFingerprint"))) {
+      if (getSetting("comparisonFingerprint") != null) {
+        System.out.println("Comparison parameters changed; all pairs compared");
+      }
+      statementOuter.execute("delete from SimilarPair");
+      statementOuter.execute("delete from RetryPair");
+      putSetting("comparisonFingerprint", fingerprint);
+      putSetting("comparedId", "0");
+    }
+    statementOuter.execute("delete from SimilarPair where idA not in (select id from Signature)"
+      + " or idB not in (select id from Signature)");
+    statementOuter.execute("delete from RetryPair where idA not in (select id from Signature)"
+      + " or idB not in (select id from Signature)");
 
-        // ! [Compute Hash]
+    String comparedId = getSetting("comparedId");
+    return comparedId == null ? 0 : Integer.parseInt(comparedId);
+  }
 
-      } catch (Exception e) {
-        System.err.format("\n\n\nException thrown - Cannot process image %d:  %s  %s   \n\n\n", id,
-          filename, e.toString());
-        return;
-      } finally {
-        if(src != null) {
-          src.release();
+  /**
+   * @return the parameters that decide which pairs are similar
+   */
+  static String comparisonFingerprint() {
+    return "maxDifferences " + maxDifferences + (doMSSIM ? ", mssim " + maxDifferencesMSSIM + ", features " + features
+      + (matchFeatures instanceof OrbMatching ? " ORB" : "") : ", no mssim")
+      + (groupSkip ? ", group skip" : ""); // pairs within a group weren't all kept
+  }
+
+  /**
+   * Report the similar pairs verified in earlier runs. They aren't displayed again.
+   * @throws SQLException
+   */
+  void reportPreviousPairs() throws SQLException {
+    int count = 0;
+    try (ResultSet rs = statementOuter.executeQuery(
+        "select p.idA, a.filename, p.idB, b.filename, p.similarity, p.mssim, p.features, p.inferred from SimilarPair p"
+          + " join Signature a on a.id = p.idA join Signature b on b.id = p.idB where p.similar order by p.idA, p.idB")) {
+      while (rs.next()) {
+        SimilarPair pair = new SimilarPair(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getString(4), rs.getInt(5));
+        pair.mssim = rs.getDouble(6);
+        pair.features = rs.getInt(7);
+        pair.similar = true;
+        if (groups != null) {
+          groups.join(pair);
         }
-        if(signatureImage != null) {
-          signatureImage.releaseMats(); // done with the Mats
+        if (rs.getBoolean(8)) {
+          continue; // not verified; only in its group
+        }
+        report(pair, false);
+        count++;
+      }
+    }
+    if (count > 0) {
+      System.out.println("Similar pairs from earlier runs " + count);
+    }
+  }
+
+  static String getSetting(String name) throws SQLException {
+    try (PreparedStatement statement = conn.prepareStatement("select setting from Settings where name = ?")) {
+      statement.setString(1, name);
+      try (ResultSet rs = statement.executeQuery()) {
+        return rs.next() ? rs.getString(1) : null;
+      }
+    }
+  }
+
+  static void putSetting(String name, String value) throws SQLException {
+    try (PreparedStatement statement = conn.prepareStatement("merge into Settings key(name) values(?, ?)")) {
+      statement.setString(1, name);
+      statement.setString(2, value);
+      statement.execute();
+    }
+  }
+
+  /**
+   * Write the signature vectors of all the images in the index for Kohonen SOM post processing.
+   * The vectors are the signature bits, the same as the last adaptive threshold of the pipeline.
+   * @throws SQLException
+   */
+  static void writeKohonenVectors() throws SQLException {
+    int startChannel = (BW ? 0 : 1);
+    int endChannel = (COLOR ? 2 : 0);
+    int bits = GripPipelineSimilar.signatureBits();
+
+    try (ResultSet rs = statementOuter.executeQuery(
+        "select id, filename, signature1, signature2, signature3 from Signature order by id")) {
+      while (rs.next()) {
+        if (firstTimeWriteKohNumDimensions) {
+          kohVectors.println(bits * (endChannel - startChannel + 1));
+          firstTimeWriteKohNumDimensions = false;
+        }
+        kohVectors.println("id" + rs.getInt(1) + " " + rs.getString(2)); // label for the Kohonen vector - use the file sequence number
+        for (int channel = startChannel; channel <= endChannel; channel++) {
+          long[] hash = Hamming.fromBytes(rs.getBytes(3 + channel));
+          for (int idx = 0; idx < bits; idx++) {
+            kohVectors.println((hash[idx / 64] >>> idx & 1) != 0 ? "1" : "0"); // Kohonen output for this dimension
+          }
         }
       }
-      // System.err.print(Runtime.getRuntime().freeMemory() + " ");
     }
   }
 
@@ -500,115 +1196,471 @@ public class App {
    */
   void findSimilarImages() throws Exception {
 
-    ResultSet rsOuter = statementOuter.executeQuery("select * from signature");
-    statementInner = conn.prepareCall("SELECT * FROM signature WHERE id > ?");
+    statementInner = conn.prepareStatement("select filename from Signature where id = ?");
 
-    double mssim;
+    // pairs verified in earlier runs are kept; only pairs with an image newer than the watermark are compared
+    int comparedId = openComparison();
+    savePair = conn.prepareStatement("merge into SimilarPair key(idA, idB) values(?, ?, ?, ?, ?, ?, ?)");
+    saveRetry = conn.prepareStatement("merge into RetryPair key(idA, idB) values(?, ?, ?)");
+    descriptors.use(conn);
+    reportPreviousPairs();
 
-    while (rsOuter.next()) { // outer loop over all lines
-      // System.err.println(rsOuter.getInt("id") + " " +
-      // Runtime.getRuntime().freeMemory());
-      System.out.print("\r" + rsOuter.getInt("id"));
-      statementInner.setInt(1, rsOuter.getInt("id")); // set the start of the next loop as the current position in this
-                                                      // loop - diagonal half of a matrix
-      ResultSet rsInner = statementInner.executeQuery();
+    // the pairs found are verified on verifyThreads while the comparison goes on
+    verifyPipeline = new VerifyPipeline(verifyThreads, verifyThreads * 4, this::verify, this::record);
+    retryPairs();
 
-      while (rsInner.next()) { // inner loop over the rest - diagonal half - to find similarities
+    if (coordinator) {
+      verifyPipeline.close(); // the workers verify the rest
+      findSimilarImagesSharded(comparedId);
+    }
+    else {
+      if (compareBlocked) {
+        findSimilarImagesBlocked(comparedId);
+      }
+      else {
+        findSimilarImagesInMemory(comparedId);
+      }
+      verifyPipeline.close();
+    }
 
-        // System.out.print("\r" + rsOuter.getInt("id") + ":" + rsInner.getInt("id"));
+    savePair.executeBatch();
+    savePair.close();
+    saveRetry.close();
+    putSetting("comparedId", Integer.toString(id.get()));
+    if (doMSSIM && !coordinator) {
+      System.out.println(thumbnails.report());
+      System.out.println(descriptors.report());
+    }
+    if (mssimCheck && !coordinator) {
+      System.out.println(MSSIM.report());
+    }
+    if (groups != null) {
+      groups.write();
+      System.out.println(groups.report());
+    }
+  }
 
-        // Compute similarity index as the Hamming Distance as the number of different bits between the two compressed
-        // signatures. That is the number of 1's in the XOR difference.  Suggested current implementation is it
-        // counts the similar bits in Y plane and one fourth the count of bits in U and V planes.
-        // Lower count means more similar.
-        int similarity;
-        similarity = Long.bitCount(rsOuter.getLong("signature1") ^ rsInner.getLong("signature1"))
-            + ((Long.bitCount(rsOuter.getLong("signature2") ^ rsInner.getLong("signature2"))
-            + Long.bitCount(rsOuter.getLong("signature3") ^ rsInner.getLong("signature3"))) / 4);
+  /**
+   * Verify again the pairs that couldn't be verified in earlier runs. They're below the
+   * watermark so the comparison won't find them again.
+   * @throws Exception
+   */
+  void retryPairs() throws Exception {
+    List<SimilarPair> retries = new ArrayList<SimilarPair>();
+    try (ResultSet rs = statementOuter.executeQuery(
+        "select p.idA, a.filename, p.idB, b.filename, p.similarity from RetryPair p"
+          + " join Signature a on a.id = p.idA join Signature b on b.id = p.idB order by p.idA, p.idB")) {
+      while (rs.next()) {
+        retries.add(new SimilarPair(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getString(4), rs.getInt(5)));
+      }
+    }
+    statementOuter.execute("delete from RetryPair"); // those that fail again are put back
+    if (!retries.isEmpty()) {
+      System.out.println("Pairs that couldn't be verified in earlier runs tried again " + retries.size());
+    }
+    for (SimilarPair retry : retries) {
+      verifyPipeline.put(retry);
+    }
+  }
 
-        if (similarity <= maxDifferences) {
-          // little blurry images appear similar to the Hamming distance
-          // verify similarities with MSSIM and SIFT FLANN matching as necessary
- 
-          mssim = 0;
-          int countFeatures = 0;
-          File fileA = new File(rsOuter.getString("filename"));
-          File fileB = new File(rsInner.getString("filename"));
-          // a file might have been deleted already and not available for further processing
-          boolean filesExist = fileA.exists() && fileB.exists();
-
-          if (doMSSIM && filesExist) {
-            // mssim technique seems to have fewer false similars than the signature/hash
-            // but at huge cost for reading and processing entire images n^2/2 times instead of the
-            // short signature of images which usually can be stored in memory.
-            // Too much reading of images from a mechanical disk drive will destroy
-            // the drive (I know).
-
-            // Get the 2 images (again)
-            // Run the MSSIM
-            // Print the MSSIM if near 1
-            // This isn't efficient - shouldn't have to get the first image more than once
-            // for the mu and std but that isn't much compared to the covariance calcs
-
-            // need to have 2 images at once
-            // tried to declare Mat srcBmssim outside the inner loop but imread has a huge
-            // memory leak so allocate and release each time
-            Mat srcAmssim = Imgcodecs.imread(rsOuter.getString("filename"), Imgcodecs.IMREAD_UNCHANGED);
-            Mat srcBmssim = Imgcodecs.imread(rsInner.getString("filename"), Imgcodecs.IMREAD_UNCHANGED);
-            // getMSSIM() returns 3 values in a Scalar (val[0], val[1], val[2]).  Ostensibly it was OpenCV
-            // BGR planes but MSSIM doesn't know the meaning of planes.
-            // For this program the image had been converted to YUV from BGR and only the Y is checked
-            // below for MSSIM.
-
-            mssim = MSSIM.getMSSIM(srcAmssim, srcBmssim).val[0]; // roughly > 0.4 similar; < 0.4 dissimilar;
-
-            if (mssim < maxDifferencesMSSIM) {
-              // images appear dissimilar to MSSIM (and the blurred images signatures)
-              // so verify by counting the features in common
-              countFeatures = matchFeatures.SIFTFLANNMatching(srcAmssim, srcBmssim).size();   
-            }
-            srcAmssim.release();
-            srcBmssim.release();
-          }
+  /**
+   * Compare the signatures in memory and verify the similar pairs
+   * @param comparedId watermark; pairs of images with ids up to it have been compared
+   * @throws Exception
+   */
+  void findSimilarImagesInMemory(int comparedId) throws Exception {
+
+    // all the signatures in memory; filenames only fetched for similar pairs
+    SignatureIndex index = SignatureIndex.load(conn);
+    // rows are in id order so the new images are the rows from firstNew
+    int firstNew = Arrays.binarySearch(index.ids, comparedId + 1);
+    if (firstNew < 0) {
+      firstNew = -firstNew - 1;
+    }
 
-          if (!doMSSIM || mssim >= maxDifferencesMSSIM || countFeatures >= features) { // use the initial mssim for printing below if not calculating it
-            
-            // Similar Images
-            similarFiles.format("%02d, %4.2f, %d, %d:%d, %s || %s\n",
-                similarity, mssim, countFeatures, rsOuter.getInt("id"), rsInner.getInt("id"),
-                rsOuter.getString("filename"), rsInner.getString("filename"));
-
-            if (displayImages && filesExist) {
-                Mat srcA = Imgcodecs.imread(rsOuter.getString("filename"));
-                Mat srcB = Imgcodecs.imread(rsInner.getString("filename"));
-                HighGui.imshow("A " + similarity + " " + String.format("%4.2f ", mssim) + countFeatures + " " + rsOuter.getString("filename"),
-                    srcA);
-                // HighGui.imshow("A " + similarity + " " + rsOuter.getString("filename"),
-                // srcA);
-                int rc = HighGui.waitKey(0);
-                if (rc == keyQuitQ || rc == keyQuitq) {
-                  displayImages = false;                  
-                }
-                else {
-                  HighGui.imshow(
-                      "B " + similarity + " " + String.format("%4.2f ", mssim) + countFeatures + " " + rsInner.getString("filename"), srcB);
-                  // HighGui.imshow("B " + similarity + " " + rsInner.getString("filename"),
-                  // srcB);
-                  rc = HighGui.waitKey(0);
-                  if (rc == keyQuitQ || rc == keyQuitq) {
-                    displayImages = false;                    
-                  }
-                }
-                srcA.release();
-                srcB.release();
-                displayImages(rsOuter.getString("filename"), rsInner.getString("filename"));
-            }
+    // Compute similarity index as the Hamming Distance as the number of different bits between the two compressed
+    // signatures. That is the number of 1's in the XOR difference.  Suggested current implementation is it
+    // counts the similar bits in Y plane and one fourth the count of bits in U and V planes.
+    // Lower count means more similar.
+    long startTime = System.nanoTime();
+    long[] similarPairs;
+    if (compareIndex) {
+      // only the pairs with a chunk of the Y signature nearly the same
+      ChunkIndex chunkIndex = new ChunkIndex(index, maxDifferences, firstNew);
+      similarPairs = chunkIndex.scan(compareThreads);
+      System.out.format("Searched %d signatures, %d new, in %d chunks within %d bits on %d threads in %d ms, %d similar pairs\n",
+        index.size, index.size - firstNew, chunkIndex.chunks(), chunkIndex.radius(), compareThreads,
+        (System.nanoTime() - startTime) / 1000000, similarPairs.length);
+    }
+    else {
+      // All pairs - diagonal half - with a new image compared on compareThreads in cache sized tiles
+      HammingKernel kernel = HammingKernel.create(vectorKernel);
+      PairScan scan = new PairScan(index, kernel, maxDifferences, tileSize, 0, index.size, firstNew, index.size);
+      similarPairs = scan.scan(compareThreads);
+      long time = System.nanoTime() - startTime;
+      System.out.format("Compared %d signatures, %d new, in %d tiles of %d on %d threads in %d ms, %d similar pairs\n",
+        index.size, index.size - firstNew, scan.tileCount(), scan.tileSize(), compareThreads, time / 1000000,
+        similarPairs.length);
+      System.out.format("%s kernel %.0f pairs/second\n", kernel.name(),
+        ((double) index.size * (index.size - 1) / 2 - (double) firstNew * (firstNew - 1) / 2) / Math.max(time, 1) * 1.e9);
+    }
+
+    int lastA = -1;
+    String filenameA = null;
+    List<SimilarPair> candidates = new ArrayList<SimilarPair>(); // all the pairs when verifying in path order
+    for (long pair : similarPairs) {
+      int a = PairScan.first(pair);
+      int b = PairScan.second(pair);
+      if (a != lastA) {
+        // System.err.println(index.ids[a] + " " +
+        // Runtime.getRuntime().freeMemory());
+        System.out.print("\r" + index.ids[a]);
+        filenameA = filename(index.ids[a]);
+        lastA = a;
+      }
+      SimilarPair candidate =
+        new SimilarPair(index.ids[a], filenameA, index.ids[b], filename(index.ids[b]), index.similarity(a, b));
+      if (verifyByPath) {
+        candidates.add(candidate);
+      }
+      else {
+        verifyPipeline.put(candidate);
+      }
+    }
+    if (verifyByPath) {
+      VerifySchedule.byPath(candidates);
+      for (SimilarPair candidate : candidates) {
+        verifyPipeline.put(candidate);
+      }
+    }
+  }
+
+  /**
+   * Hand the comparison and verification out in shards to worker processes and record their
+   * results
+   * @param comparedId watermark; pairs of images with ids up to it have been compared
+   * @throws Exception
+   */
+  void findSimilarImagesSharded(int comparedId) throws Exception {
+    long startTime = System.nanoTime();
+    ShardCoordinator shards = new ShardCoordinator(conn, coordinatorPort, shardSize, comparedId, this::record);
+    System.out.println("Comparing " + shards.signatures() + " signatures, " + (shards.signatures() - shards.firstNew())
+      + " new, in " + shards.shards() + " shards");
+    shards.run(localWorkers);
+    System.out.format("\nCompared and verified %d shards in %d ms, %d pairs\n", shards.shards(),
+      (System.nanoTime() - startTime) / 1000000, savedPairs);
+  }
+
+  /**
+   * Keep the result of verifying a pair of images for later runs and report them if similar.
+   * A pair skipped since its images were already in a group is kept as inferred, only reported
+   * by its group. The pairs are recorded in the order they were found so that's where the skip is
+   * decided and the groups joined.
+   * @param pair verified images
+   */
+  void record(SimilarPair pair) {
+    if (groupSkip && groups.skip(pair)) {
+      // put in the same group by the pairs before it; its verification, if it had one, isn't used
+      pair.grouped = true;
+      pair.similar = true;
+      pair.failed = false;
+      pair.mssim = 0;
+      pair.features = 0;
+    }
+    if (pair.failed) {
+      // not kept as dissimilar; tried again next run
+      try {
+        saveRetry.setInt(1, pair.idA);
+        saveRetry.setInt(2, pair.idB);
+        saveRetry.setInt(3, pair.similarity);
+        saveRetry.execute();
+      } catch (SQLException e) {
+        System.err.format("\n\n\nException thrown - Cannot save pair %d:%d  %s\n\n\n", pair.idA, pair.idB, e.toString());
+      }
+      return;
+    }
+    if (groups != null && pair.similar) {
+      groups.join(pair);
+    }
+    try {
+      savePair.setInt(1, pair.idA);
+      savePair.setInt(2, pair.idB);
+      savePair.setInt(3, pair.similarity);
+      savePair.setDouble(4, pair.mssim);
+      savePair.setInt(5, pair.features);
+      savePair.setBoolean(6, pair.similar);
+      savePair.setBoolean(7, pair.grouped); // inferred from the group; not reported as a pair
+      savePair.addBatch();
+      if (++savedPairs % batchSize == 0) {
+        savePair.executeBatch();
+      }
+    } catch (SQLException e) {
+      System.err.format("\n\n\nException thrown - Cannot save pair %d:%d  %s\n\n\n", pair.idA, pair.idB, e.toString());
+    }
+    if (pair.similar && !pair.grouped) {
+      report(pair, true); // the group reports the pairs that weren't verified
+    }
+  }
+
+  /**
+   * Find the images in the signature index similar to each query image. The index is loaded
+   * once then each query is a signature, a scan of the index and verification of the hits. The
+   * query image is only decoded once; the decode is kept for the verification of its hits.
+   * @param files query images
+   * @throws Exception
+   */
+  void query(String[] files) throws Exception {
+    if (getSetting("fingerprint") == null) {
+      System.out.println("No signature index; run on a directory first");
+      return;
+    }
+    if (!signatureFingerprint().equals(getSetting("fingerprint"))) {
+      System.out.println("Signature index was made with different signature parameters "
+        + getSetting("fingerprint") + "; query with the same -DsignatureSize and -DreducedDecode");
+      return;
+    }
+
+    long startTime = System.nanoTime();
+    // one spare row at the end for the query signature
+    SignatureIndex index = SignatureIndex.load(conn, 1);
+    int queryRow = index.size - 1;
+    HammingKernel kernel = HammingKernel.create(vectorKernel);
+    statementInner = conn.prepareStatement("select filename from Signature where id = ?");
+    descriptors.use(conn);
+    System.out.format("Signature index of %d images from %s loaded in %d ms\n", queryRow, getSetting("root"),
+      (System.nanoTime() - startTime) / 1000000);
+
+    CompressImage compressImage = new CompressImage();
+    for (String query : files) {
+      startTime = System.nanoTime();
+      File file = new File(query);
+      String filename = file.getCanonicalPath();
+      queryImage = new QueryImage();
+      IndexedFile queryFile = new IndexedFile(0, filename, file.length(), file.lastModified(), NOT_INDEXED);
+      ImageSignature signature = compressImage.run(queryFile, doMSSIM ? queryImage::decoded : null);
+      if (signature.failed()) {
+        queryImage.release();
+        System.out.format("Cannot process image %s  %s\n", filename, signature.error);
+        continue;
+      }
+
+      index.set(queryRow, 0, signature.hash);
+      PairScan.PairList hits = new PairScan.PairList();
+      kernel.compare(index, queryRow, 0, queryRow, maxDifferences, hits);
+
+      int similar = 0;
+      try {
+        for (int hit = 0; hit < hits.size; hit++) {
+          int row = PairScan.second(hits.pairs[hit]);
+          SimilarPair pair =
+            new SimilarPair(0, filename, index.ids[row], filename(index.ids[row]), index.similarity(queryRow, row));
+          if (!filename.equals(pair.filenameB) // the query image may be in the index itself
+              && verify(pair)) {
+            report(pair, true);
+            similar++;
           }
         }
+      } finally {
+        queryImage.release();
+      }
+      System.out.format("Query %s: %d signature hits, %d similar in %.1f ms\n", filename, hits.size, similar,
+        (System.nanoTime() - startTime) / 1.e6);
+    }
+    queryImage = null;
+    compressImage.release();
+    statementInner.close();
+    if (doMSSIM) {
+      System.out.println(thumbnails.report());
+      System.out.println(descriptors.report());
+    }
+    if (mssimCheck) {
+      System.out.println(MSSIM.report());
+    }
+  }
+
+  /**
+   * Compare all the pairs of signatures in blocks from disk then verify the similar pairs from
+   * the sorted run file. Neither the signatures nor the pairs are all in memory.
+   * @param comparedId watermark; pairs of images with ids up to it have been compared
+   * @throws Exception
+   */
+  void findSimilarImagesBlocked(int comparedId) throws Exception {
+    long startTime = System.nanoTime();
+    HammingKernel kernel = HammingKernel.create(vectorKernel);
+    BlockedScan scan = new BlockedScan(kernel, maxDifferences, tileSize, memoryBudget);
+    File runFile = scan.scan(conn, compareThreads, comparedId);
+    System.out.format(
+      "Compared %d signatures, %d new, in %d blocks of %d on %d threads in %d ms, %d runs of %d similar pairs\n",
+      scan.rows(), scan.rows() - scan.firstNew(), scan.blocks(), scan.blockRows(), compareThreads,
+      (System.nanoTime() - startTime) / 1000000, scan.runs(), runFile.length() / BlockedScan.RUN_RECORD_BYTES);
+
+    int lastA = -1;
+    String filenameA = null;
+    try (BlockedScan.RunReader pairs = new BlockedScan.RunReader(runFile)) {
+      while (pairs.next()) {
+        int idA = PairScan.first(pairs.head);
+        int idB = PairScan.second(pairs.head);
+        if (idA != lastA) {
+          System.out.print("\r" + idA);
+          filenameA = filename(idA);
+          lastA = idA;
+        }
+        verifyPipeline.put(new SimilarPair(idA, filenameA, idB, filename(idB), pairs.similarity));
+      }
+    }
+    runFile.delete();
+  }
+
+  /**
+   * Get an image filename from the DB
+   * @param id primary key in DB
+   * @return filename
+   * @throws SQLException
+   */
+  static String filename(int id) throws SQLException {
+    statementInner.setInt(1, id);
+    try (ResultSet rs = statementInner.executeQuery()) {
+      return rs.next() ? rs.getString(1) : null;
+    }
+  }
+
+  /**
+   * Verify a pair of images with similar signatures
+   * @param pair images with similar signatures; the MSSIM, features and similar are set
+   * @return true if the images are similar
+   */
+  boolean verify(SimilarPair pair) {
+    if (groupSkip && groups.together(pair)) {
+      // already in the same group by way of the pairs before it; record() skips it
+      pair.similar = true;
+      return true;
+    }
+    String filenameA = pair.filenameA;
+    String filenameB = pair.filenameB;
+    // little blurry images appear similar to the Hamming distance
+    // verify similarities with MSSIM and SIFT FLANN matching as necessary
+ 
+    double mssim = 0;
+    int countFeatures = 0;
+    File fileA = new File(filenameA);
+    File fileB = new File(filenameB);
+    // a file might have been deleted already and not available for further processing
+    boolean filesExist = fileA.exists() && fileB.exists();
+
+    if (doMSSIM && filesExist) {
+      // mssim technique seems to have fewer false similars than the signature/hash
+      // but at huge cost for reading and processing entire images n^2/2 times instead of the
+      // short signature of images which usually can be stored in memory.
+      // Too much reading of images from a mechanical disk drive will destroy
+      // the drive (I know).
+
+      // Get the 2 images (again)
+      // Run the MSSIM
+      // Print the MSSIM if near 1
+      // The thumbnails are kept so an image isn't read again for each of its pairs
+
+      // MSSIM only needs the thumbnails and their statistics; an image in many pairs is only read
+      // and its statistics computed the first time
+      MSSIM.Statistics statisticsA = statistics(pair.idA, filenameA);
+      MSSIM.Statistics statisticsB = statistics(pair.idB, filenameB);
+      // getMSSIM() returns 3 values in a Scalar (val[0], val[1], val[2]).  Ostensibly it was OpenCV
+      // BGR planes but MSSIM doesn't know the meaning of planes.
+      // For this program the image had been converted to YUV from BGR and only the Y is checked
+      // below for MSSIM.
+
+      mssim = MSSIM.getMSSIM(statisticsA, statisticsB).val[0]; // roughly > 0.4 similar; < 0.4 dissimilar;
+      if (mssimCheck) {
+        MSSIM.check(filenameA, filenameB, mssim);
+      }
+
+      if (mssim < maxDifferencesMSSIM) {
+        // images appear dissimilar to MSSIM (and the blurred images signatures)
+        // so verify by counting the features in common; the SIFT descriptors of the full images
+        // are kept so an image is only read and detected the first time
+        Mat descriptorsA = descriptors(pair.idA, filenameA);
+        Mat descriptorsB = descriptors(pair.idB, filenameB);
+        try {
+          countFeatures = matchFeatures.matchDescriptors(descriptorsA, descriptorsB).size();
+        } finally {
+          descriptorsA.release();
+          descriptorsB.release();
+        }
       }
-      rsInner.close();
     }
-    rsOuter.close();
+
+    pair.mssim = mssim;
+    pair.features = countFeatures;
+    if (doMSSIM && !filesExist) {
+      // maybe only for now, a network drive; if it's deleted the pair goes with it next run
+      pair.failed = true;
+      pair.similar = false;
+      return false;
+    }
+    // use the initial mssim for printing if not calculating it
+    pair.similar = !doMSSIM || mssim >= maxDifferencesMSSIM || countFeatures >= features;
+    return pair.similar;
+  }
+
+  /**
+   * @param id primary key in DB of the image; 0 for the query image
+   * @param filename
+   * @return MSSIM statistics of the image, not to be changed
+   */
+  static MSSIM.Statistics statistics(int id, String filename) {
+    return id == 0 && queryImage != null ? queryImage.statistics() : thumbnails.get(id, filename);
+  }
+
+  /**
+   * @param id primary key in DB of the image; 0 for the query image
+   * @param filename
+   * @return feature descriptors of the image, to be released by the caller
+   */
+  static Mat descriptors(int id, String filename) {
+    return id == 0 && queryImage != null ? queryImage.descriptors(matchFeatures) : descriptors.get(id, filename);
+  }
+
+  /**
+   * Report similar images and optionally display them
+   * @param pair similar images
+   * @param display display them if displaying images
+   */
+  void report(SimilarPair pair, boolean display) {
+    String filenameA = pair.filenameA;
+    String filenameB = pair.filenameB;
+    int similarity = pair.similarity;
+    double mssim = pair.mssim;
+    int countFeatures = pair.features;
+
+    // Similar Images
+    similarFiles.format("%02d, %4.2f, %d, %d:%d, %s || %s\n",
+        similarity, mssim, countFeatures, pair.idA, pair.idB,
+        filenameA, filenameB);
+
+    if (display && displayImages && new File(filenameA).exists() && new File(filenameB).exists()) {
+        Mat srcA = Imgcodecs.imread(filenameA);
+        Mat srcB = Imgcodecs.imread(filenameB);
+        HighGui.imshow("A " + similarity + " " + String.format("%4.2f ", mssim) + countFeatures + " " + filenameA,
+            srcA);
+        // HighGui.imshow("A " + similarity + " " + filenameA,
+        // srcA);
+        int rc = HighGui.waitKey(0);
+        if (rc == keyQuitQ || rc == keyQuitq) {
+          displayImages = false;                  
+        }
+        else {
+          HighGui.imshow(
+              "B " + similarity + " " + String.format("%4.2f ", mssim) + countFeatures + " " + filenameB, srcB);
+          // HighGui.imshow("B " + similarity + " " + filenameB,
+          // srcB);
+          rc = HighGui.waitKey(0);
+          if (rc == keyQuitQ || rc == keyQuitq) {
+            displayImages = false;                    
+          }
+        }
+        srcA.release();
+        srcB.release();
+        displayImages(filenameA, filenameB);
+    }
   }
 }
 
@@ -0,0 +1,415 @@
+package app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Compare all the pairs of signatures in blocks from disk for collections too large for memory.
+ *
+ * <p>The signatures are copied from the DB to a flat file of fixed size records in id order. The
+ * file is read a block at a time and each block is compared with itself and with every later
+ * block, the block nested loop, so only two blocks are in memory at once. The similar pairs are
+ * kept as id pairs with their similarity in a buffer, added as each tile is compared; when it's
+ * full it's sorted and spilled to a run file, and at the end the runs are merged into one sorted
+ * run file. The block size and the pair buffer come from the memory budget so the memory used
+ * doesn't grow with the collection.
+ *
+ * <p>The filenames aren't in the blocks; they're fetched from the DB for the similar pairs.
+ */
+class BlockedScan {
+
+  static final String BLOCK_FILE = "signature.blocks";
+  static final String RUN_FILE = "similarPairs.run";
+  static final int MERGE_WAYS = 64; // runs merged at a time
+  static final int STREAM_BUFFER = 64 * 1024;
+  static final int MIN_ROWS = 64; // smallest block and pair buffer however small the budget
+  static final int RUN_RECORD_BYTES = Long.BYTES + Integer.BYTES; // pair of ids and their similarity
+
+  private final HammingKernel kernel;
+  private final int maxDifferences;
+  private final int tileSize;
+  private final int words;
+  private final int recordBytes; // id and the Y U V words
+  private final int blockRows;
+  private final long[] pairBuffer; // similar pairs waiting to be spilled
+  private final int[] similarityBuffer; // similarity of each of them
+  private int pairCount;
+  private final List<File> runs = new ArrayList<File>();
+
+  private int rows; // signatures in the block file
+  private int firstNew; // signatures before it have been compared with each other
+  private int blocks;
+
+  /**
+   * @param kernel compares signatures
+   * @param maxDifferences largest similarity to keep
+   * @param tileSize rows and columns in a tile; 0 for the default
+   * @param memoryBudget bytes for the blocks and the pair buffer
+   */
+  BlockedScan(HammingKernel kernel, int maxDifferences, int tileSize, long memoryBudget) {
+    this.kernel = kernel;
+    this.maxDifferences = maxDifferences;
+    this.tileSize = tileSize;
+    words = Hamming.words(GripPipelineSimilar.signatureBits());
+    recordBytes = Integer.BYTES + 3 * words * Long.BYTES;
+
+    // half the budget for the 2 blocks in memory and the read buffer, a quarter for the pairs and
+    // the rest for the similar pairs of the tiles and the merge buffers
+    blockRows = (int) Math.max(MIN_ROWS, Math.min(Integer.MAX_VALUE / 2 / recordBytes, memoryBudget / 2 / (3 * recordBytes)));
+    int pairs = (int) Math.max(MIN_ROWS, Math.min(Integer.MAX_VALUE - 8, memoryBudget / 4 / RUN_RECORD_BYTES));
+    pairBuffer = new long[pairs];
+    similarityBuffer = new int[pairs];
+  }
+
+  int blockRows() {
+    return blockRows;
+  }
+
+  int blocks() {
+    return blocks;
+  }
+
+  int rows() {
+    return rows;
+  }
+
+  int firstNew() {
+    return firstNew;
+  }
+
+  int runs() {
+    return runs.size();
+  }
+
+  /**
+   * Copy the signatures to the block file, compare all the pairs with a new signature and merge
+   * the runs
+   * @param conn DB of signatures
+   * @param threads fork join parallelism for comparing a pair of blocks
+   * @param comparedId signatures with ids up to it have been compared with each other
+   * @return run file of the similar pairs of ids packed by PairScan.pair(), ascending, each followed
+   * by its similarity
+   * @throws SQLException
+   * @throws IOException
+   */
+  File scan(Connection conn, int threads, int comparedId) throws SQLException, IOException {
+    File blockFile = new File(BLOCK_FILE);
+    export(conn, blockFile, comparedId);
+    blocks = (rows + blockRows - 1) / blockRows;
+
+    // block i in rows 0 to blockRows, block j after it
+    SignatureIndex index = new SignatureIndex(2 * blockRows, words);
+    ByteBuffer buffer = ByteBuffer.allocate(blockRows * recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+    try (FileChannel channel = new RandomAccessFile(blockFile, "r").getChannel()) {
+      // only the columns of the new signatures; the blocks are in id order so they're the last rows
+      for (int i = 0; i < blocks && firstNew < rows; i++) {
+        int rowsI = read(channel, buffer, i, index, 0);
+        int newI = Math.max(0, firstNew - i * blockRows);
+        if (newI < rowsI) {
+          compare(new PairScan(index, kernel, maxDifferences, tileSize, 0, rowsI, newI, rowsI), index, threads);
+        }
+
+        for (int j = i + 1; j < blocks; j++) {
+          int newJ = Math.max(0, firstNew - j * blockRows);
+          if (newJ >= Math.min(blockRows, rows - j * blockRows)) {
+            continue; // all compared with block i before
+          }
+          int rowsJ = read(channel, buffer, j, index, blockRows);
+          compare(new PairScan(index, kernel, maxDifferences, tileSize, 0, rowsI, blockRows + newJ, blockRows + rowsJ),
+            index, threads);
+        }
+      }
+    }
+    spill();
+    blockFile.delete();
+    return merge();
+  }
+
+  /**
+   * Copy the signatures from the DB to the block file in id order
+   * @param conn
+   * @param blockFile
+   * @param comparedId signatures with ids up to it have been compared with each other
+   * @throws SQLException
+   * @throws IOException
+   */
+  private void export(Connection conn, File blockFile, int comparedId) throws SQLException, IOException {
+    ByteBuffer record = ByteBuffer.allocate(recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+    rows = 0;
+    firstNew = 0;
+    try (Statement statement = conn.createStatement();
+        ResultSet rs = statement.executeQuery("select id, signature1, signature2, signature3 from Signature order by id");
+        FileOutputStream out = new FileOutputStream(blockFile);
+        BufferedOutputStream buffered = new BufferedOutputStream(out, STREAM_BUFFER)) {
+      while (rs.next()) {
+        record.clear();
+        record.putInt(rs.getInt(1));
+        if (rs.getInt(1) <= comparedId) {
+          firstNew++;
+        }
+        for (int channel = 0; channel < 3; channel++) {
+          byte[] bytes = rs.getBytes(channel + 2); // the same 8 bytes a word little endian as the block file
+          record.put(bytes, 0, words * Long.BYTES);
+        }
+        buffered.write(record.array(), 0, recordBytes);
+        rows++;
+      }
+    }
+  }
+
+  /**
+   * Read a block of the block file into the index
+   * @param channel block file
+   * @param buffer for the block
+   * @param block number of the block
+   * @param index signatures
+   * @param firstRow row of the index for the first signature of the block
+   * @return signatures in the block
+   * @throws IOException
+   */
+  private int read(FileChannel channel, ByteBuffer buffer, int block, SignatureIndex index, int firstRow)
+      throws IOException {
+    int blockSize = Math.min(blockRows, rows - block * blockRows);
+    buffer.clear().limit(blockSize * recordBytes);
+    long position = (long) block * blockRows * recordBytes;
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException(BLOCK_FILE + " block " + block);
+      }
+    }
+    buffer.flip();
+
+    for (int row = firstRow; row < firstRow + blockSize; row++) {
+      index.ids[row] = buffer.getInt();
+      for (int word = 0; word < 3 * words; word++) {
+        index.hash[word][row] = buffer.getLong();
+      }
+    }
+    return blockSize;
+  }
+
+  /**
+   * Compare the pairs of a pair of blocks and keep the similar ones
+   * @param scan the tiles of the pair of blocks
+   * @param index signatures of the pair of blocks
+   * @param threads
+   * @throws IOException
+   */
+  private void compare(PairScan scan, SignatureIndex index, int threads) throws IOException {
+    try {
+      scan.scan(threads, (pairs, tile) -> add(pairs, index));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Add the similar pairs of a tile to the pair buffer, spilling it when it's full. Called as each
+   * tile is done so only the pairs of the tiles being compared are waiting besides the buffer.
+   * @param pairs similar pairs of rows of the index
+   * @param index signatures of the pair of blocks
+   */
+  private synchronized void add(PairScan.PairList pairs, SignatureIndex index) {
+    try {
+      for (int i = 0; i < pairs.size; i++) {
+        if (pairCount == pairBuffer.length) {
+          spill();
+        }
+        int a = PairScan.first(pairs.pairs[i]);
+        int b = PairScan.second(pairs.pairs[i]);
+        pairBuffer[pairCount] = PairScan.pair(index.ids[a], index.ids[b]);
+        similarityBuffer[pairCount++] = index.similarity(a, b);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // out of the fork join task
+    }
+  }
+
+  /**
+   * Sort the pair buffer and write it to a new run file
+   * @throws IOException
+   */
+  private void spill() throws IOException {
+    if (pairCount == 0 && !runs.isEmpty()) {
+      return;
+    }
+    sort(pairBuffer, similarityBuffer, 0, pairCount);
+    File run = new File(RUN_FILE + "." + runs.size());
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), STREAM_BUFFER))) {
+      for (int pair = 0; pair < pairCount; pair++) {
+        out.writeLong(pairBuffer[pair]);
+        out.writeInt(similarityBuffer[pair]);
+      }
+    }
+    runs.add(run);
+    pairCount = 0;
+  }
+
+  /**
+   * Sort pairs ascending with their similarities, a quicksort that takes the smaller part first
+   * so it's at most log n deep
+   * @param pairs
+   * @param similarities moved with their pairs
+   * @param from first pair
+   * @param to end of the pairs
+   */
+  static void sort(long[] pairs, int[] similarities, int from, int to) {
+    while (to - from > 16) {
+      long a = pairs[from], b = pairs[(from + to) >>> 1], c = pairs[to - 1];
+      long pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c)); // median of 3
+      int i = from;
+      int j = to - 1;
+      while (i <= j) {
+        while (pairs[i] < pivot) {
+          i++;
+        }
+        while (pairs[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(pairs, similarities, i++, j--);
+        }
+      }
+      if (j + 1 - from < to - i) {
+        sort(pairs, similarities, from, j + 1);
+        from = i;
+      }
+      else {
+        sort(pairs, similarities, i, to);
+        to = j + 1;
+      }
+    }
+    for (int i = from + 1; i < to; i++) { // insertion sort of the short ones
+      for (int j = i; j > from && pairs[j - 1] > pairs[j]; j--) {
+        swap(pairs, similarities, j - 1, j);
+      }
+    }
+  }
+
+  private static void swap(long[] pairs, int[] similarities, int i, int j) {
+    long pair = pairs[i];
+    pairs[i] = pairs[j];
+    pairs[j] = pair;
+    int similarity = similarities[i];
+    similarities[i] = similarities[j];
+    similarities[j] = similarity;
+  }
+
+  /**
+   * Merge the runs MERGE_WAYS at a time until there's one
+   * @return the run file
+   * @throws IOException
+   */
+  private File merge() throws IOException {
+    List<File> merging = new ArrayList<File>(runs);
+    int merged = 0;
+    while (merging.size() > 1) {
+      List<File> next = new ArrayList<File>();
+      for (int start = 0; start < merging.size(); start += MERGE_WAYS) {
+        List<File> group = merging.subList(start, Math.min(start + MERGE_WAYS, merging.size()));
+        if (group.size() == 1) {
+          next.add(group.get(0));
+          continue;
+        }
+        File run = new File(RUN_FILE + ".merge" + merged++);
+        merge(group, run);
+        next.add(run);
+      }
+      merging = next;
+    }
+
+    File runFile = new File(RUN_FILE);
+    runFile.delete();
+    if (!merging.get(0).renameTo(runFile)) {
+      throw new IOException("Cannot rename " + merging.get(0) + " to " + runFile);
+    }
+    return runFile;
+  }
+
+  /**
+   * Merge sorted runs into one and delete them
+   * @param group runs
+   * @param run merged run
+   * @throws IOException
+   */
+  private static void merge(List<File> group, File run) throws IOException {
+    PriorityQueue<RunReader> heads = new PriorityQueue<RunReader>((a, b) -> Long.compare(a.head, b.head));
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), STREAM_BUFFER))) {
+      for (File file : group) {
+        RunReader reader = new RunReader(file);
+        if (reader.next()) {
+          heads.add(reader);
+        }
+      }
+      while (!heads.isEmpty()) {
+        RunReader reader = heads.poll();
+        out.writeLong(reader.head);
+        out.writeInt(reader.similarity);
+        if (reader.next()) {
+          heads.add(reader);
+        }
+      }
+    } finally {
+      for (RunReader reader : heads) {
+        reader.close();
+      }
+    }
+    for (File file : group) {
+      file.delete();
+    }
+  }
+
+  /**
+   * Sequential reader of the pairs of a run file
+   */
+  static class RunReader implements AutoCloseable {
+    private final DataInputStream in;
+    long head; // current pair
+    int similarity; // of the current pair
+
+    RunReader(File run) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), STREAM_BUFFER));
+    }
+
+    /**
+     * Read the next pair into head and its similarity
+     * @return false at the end of the run
+     * @throws IOException
+     */
+    boolean next() throws IOException {
+      try {
+        head = in.readLong();
+        similarity = in.readInt();
+        return true;
+      } catch (EOFException e) {
+        close();
+        return false;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package app;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Find the similar pairs of signatures without comparing every pair (multi-index hashing).
+ *
+ * <p>The similarity is Y + (U+V)/4 so a pair within maxDifferences has at most maxDifferences
+ * different bits in the Y plane. The Y signature is cut into m chunks; if the Y planes of two
+ * images differ in at most maxDifferences bits then by the pigeonhole principle at least one chunk
+ * differs in at most maxDifferences/m bits. Each chunk has a table from its value to the rows with
+ * that value so the candidates for a row are found by looking up every value within that radius
+ * of its chunks. A candidate pair is only taken from the first chunk that is within the radius so
+ * it's found once, and then the full weighted similarity decides, so exactly the pairs of the
+ * brute force comparison are found.
+ *
+ * <p>The number of chunks is chosen from the signature size, maxDifferences and the number of
+ * signatures for the least expected work. Chunks are at most 16 bits so the tables are directly addressed.
+ */
+class ChunkIndex {
+
+  static final int MAX_CHUNK_BITS = 16;
+  static final int ROWS_PER_TASK = 1024;
+
+  private final SignatureIndex index;
+  private final int maxDifferences;
+  private final int firstNew; // rows before it have been compared with each other
+  private final int chunks; // m
+  private final int radius; // maxDifferences / m
+  private final int[] chunkStart; // first bit of each chunk; chunkStart[chunks] is the signature size
+  private final char[][] value; // [chunk][row] value of the chunk
+  private final int[][] bucketStart; // [chunk][value] start of the rows with the value; one extra at the end
+  private final int[][] bucketRows; // [chunk][] rows in order of value then row
+  private final int[][] probes; // [chunk] XOR masks of all the values within radius
+  private final PairScan.PairList[] found; // similar pairs of each task of rows
+
+  /**
+   * Build the chunk tables
+   * @param index signatures
+   * @param maxDifferences largest similarity to find
+   * @param firstNew only find the pairs with a row from firstNew
+   */
+  ChunkIndex(SignatureIndex index, int maxDifferences, int firstNew) {
+    this.index = index;
+    this.maxDifferences = maxDifferences;
+    this.firstNew = firstNew;
+    int bits = GripPipelineSimilar.signatureBits();
+
+    chunks = chunks(bits, maxDifferences, index.size);
+    radius = maxDifferences / chunks;
+    chunkStart = new int[chunks + 1];
+    for (int chunk = 0; chunk <= chunks; chunk++) {
+      chunkStart[chunk] = (int) ((long) bits * chunk / chunks);
+    }
+
+    value = new char[chunks][index.size];
+    bucketStart = new int[chunks][];
+    bucketRows = new int[chunks][index.size];
+    probes = new int[chunks][];
+    for (int chunk = 0; chunk < chunks; chunk++) {
+      int chunkBits = chunkStart[chunk + 1] - chunkStart[chunk];
+      probes[chunk] = probes(chunkBits, radius);
+
+      // counting sort of the rows by chunk value, stable so the rows of a value stay ascending
+      int[] start = new int[(1 << chunkBits) + 1];
+      for (int row = 0; row < index.size; row++) {
+        value[chunk][row] = (char) bits(row, chunkStart[chunk], chunkBits);
+        start[value[chunk][row] + 1]++;
+      }
+      for (int v = 0; v < 1 << chunkBits; v++) {
+        start[v + 1] += start[v];
+      }
+      int[] next = Arrays.copyOf(start, start.length - 1);
+      for (int row = 0; row < index.size; row++) {
+        bucketRows[chunk][next[value[chunk][row]]++] = row;
+      }
+      bucketStart[chunk] = start;
+    }
+
+    found = new PairScan.PairList[(index.size - firstNew + ROWS_PER_TASK - 1) / ROWS_PER_TASK];
+  }
+
+  /**
+   * Number of chunks with the least expected work for each row, table lookups plus candidates,
+   * for uniformly distributed signatures
+   * @param bits signature Y bits
+   * @param maxDifferences largest similarity to find
+   * @param size number of signatures
+   * @return chunks
+   */
+  static int chunks(int bits, int maxDifferences, int size) {
+    int best = 0;
+    double bestWork = Double.MAX_VALUE;
+    for (int m = (bits + MAX_CHUNK_BITS - 1) / MAX_CHUNK_BITS; m <= bits; m++) {
+      double work = 0.;
+      for (int chunk = 0; chunk < m; chunk++) {
+        int chunkBits = (int) ((long) bits * (chunk + 1) / m - (long) bits * chunk / m);
+        work += volume(chunkBits, maxDifferences / m) * (1. + size / Math.pow(2., chunkBits));
+      }
+      if (work < bestWork) {
+        bestWork = work;
+        best = m;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Number of values within Hamming distance radius of a value
+   * @param bits value bits
+   * @param radius
+   * @return sum of bits choose i for i 0 to radius
+   */
+  static double volume(int bits, int radius) {
+    double volume = 0.;
+    double choose = 1.;
+    for (int i = 0; i <= Math.min(radius, bits); i++) {
+      volume += choose;
+      choose = choose * (bits - i) / (i + 1);
+    }
+    return volume;
+  }
+
+  /**
+   * All the masks that change at most radius bits of a chunk
+   * @param bits chunk bits
+   * @param radius
+   * @return masks
+   */
+  static int[] probes(int bits, int radius) {
+    int[] masks = new int[(int) volume(bits, radius)];
+    int count = 0;
+    for (int mask = 0; mask < 1 << bits; mask++) {
+      if (Integer.bitCount(mask) <= radius) {
+        masks[count++] = mask;
+      }
+    }
+    return masks;
+  }
+
+  /**
+   * Bits of the Y signature of a row
+   * @param row
+   * @param start first bit
+   * @param length number of bits, at most 32
+   * @return the bits with the first as the low order bit
+   */
+  private int bits(int row, int start, int length) {
+    int word = start / 64;
+    int shift = start % 64;
+    long bits = index.hash[word][row] >>> shift;
+    if (shift + length > 64) {
+      bits |= index.hash[word + 1][row] << (64 - shift);
+    }
+    return (int) (bits & ((1L << length) - 1));
+  }
+
+  /**
+   * Find the similar pairs
+   * @param threads fork join parallelism
+   * @return similar pairs packed by PairScan.pair(), in ascending order of the first row then the second
+   */
+  long[] scan(int threads) {
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+    try {
+      pool.invoke(new Rows(0, found.length));
+    } finally {
+      pool.shutdown();
+    }
+
+    return PairScan.join(found);
+  }
+
+  int chunks() {
+    return chunks;
+  }
+
+  int radius() {
+    return radius;
+  }
+
+  /**
+   * Find the pairs of a task of new rows with the larger rows and the rows before firstNew
+   * @param task index of ROWS_PER_TASK rows from firstNew
+   */
+  private void query(int task) {
+    PairScan.PairList pairs = new PairScan.PairList();
+    int rowStart = firstNew + task * ROWS_PER_TASK;
+    int rowEnd = Math.min(rowStart + ROWS_PER_TASK, index.size);
+
+    for (int a = rowStart; a < rowEnd; a++) {
+      for (int chunk = 0; chunk < chunks; chunk++) {
+        int[] rows = bucketRows[chunk];
+        int[] start = bucketStart[chunk];
+        for (int mask : probes[chunk]) {
+          int v = value[chunk][a] ^ mask;
+          // rows are ascending in a bucket so stop at the pairs already seen the other way
+          for (int i = start[v + 1] - 1; i >= start[v] && rows[i] > a; i--) {
+            int b = rows[i];
+            if (firstChunk(a, b) == chunk && index.similarity(a, b) <= maxDifferences) {
+              pairs.add(PairScan.pair(a, b));
+            }
+          }
+          // and the rows already compared with each other
+          for (int i = start[v]; i < start[v + 1] && rows[i] < firstNew; i++) {
+            int b = rows[i];
+            if (firstChunk(a, b) == chunk && index.similarity(a, b) <= maxDifferences) {
+              pairs.add(PairScan.pair(b, a));
+            }
+          }
+        }
+      }
+    }
+    found[task] = pairs;
+  }
+
+  /**
+   * @return the first chunk within the radius for a pair of rows
+   */
+  private int firstChunk(int a, int b) {
+    int chunk = 0;
+    while (Integer.bitCount(value[chunk][a] ^ value[chunk][b]) > radius) {
+      chunk++;
+    }
+    return chunk;
+  }
+
+  /**
+   * A range of tasks, split in half until it's one task
+   */
+  private class Rows extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int start;
+    private final int end;
+
+    Rows(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= 1) {
+        if (end > start) {
+          query(start);
+        }
+        return;
+      }
+      int middle = (start + end) >>> 1;
+      invokeAll(new Rows(start, middle), new Rows(middle, end));
+    }
+  }
+}
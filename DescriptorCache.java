@@ -0,0 +1,222 @@
+package app;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * The feature descriptors of the images that needed the features check, in memory with the least
+ * recently used dropped first and in the DB for later runs.
+ *
+ * <p>Feature detection on the full image is the slowest part of verifying a pair, and an image in
+ * several pairs that MSSIM calls dissimilar was read and detected again for each of them. The
+ * descriptors are computed the first time and kept by image id so a pair only pays for matching.
+ * Only the descriptors are kept since the matches are only counted. Each kind of descriptor has
+ * its own table. Its rows are deleted with the Signature row of their image, when the file is
+ * deleted or changed, so they're never taken for another version of the file.
+ *
+ * <p>The descriptors are kept as the bytes they have in the DB, on the Java heap, so the budget is
+ * the memory they take and dropped ones are garbage collected. Each get() makes a Mat of them for
+ * its caller to match and release, so the verification threads share nothing native. Without a
+ * DB (a shard worker) they're only kept in memory.
+ */
+class DescriptorCache {
+
+  private final FeatureMatching features;
+  private final long budget; // bytes of descriptors kept in memory
+  private long bytes; // bytes of descriptors in memory
+  private long hits;
+  private long misses;
+  private long loaded; // misses found in the DB
+  private final LinkedHashMap<Integer, byte[]> descriptors = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+  private PreparedStatement select; // null without a DB
+  private PreparedStatement merge;
+  private final String table; // of the kind of descriptors
+
+  /**
+   * @param features computes the descriptors
+   * @param budget bytes of descriptors kept in memory; 0 keeps none
+   */
+  DescriptorCache(FeatureMatching features, long budget) {
+    this.features = features;
+    this.budget = budget;
+    table = features.name() + "Descriptors";
+  }
+
+  /**
+   * Keep the descriptors in the DB too. Descriptors of images no longer in the index are removed.
+   * @param conn
+   * @throws SQLException
+   */
+  synchronized void use(Connection conn) throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      statement.execute("create table if not exists " + table + "(id int primary key, descriptors varbinary)");
+      // tables of earlier versions didn't follow the Signature rows
+      statement.execute("delete from " + table + " where id not in (select id from Signature)");
+      statement.execute("alter table " + table + " add constraint if not exists " + table + "Signature"
+        + " foreign key(id) references Signature(id) on delete cascade");
+    }
+    select = conn.prepareStatement("select descriptors from " + table + " where id = ?");
+    merge = conn.prepareStatement("merge into " + table + " key(id) values(?, ?)");
+  }
+
+  /**
+   * The descriptors of an image from memory, the DB or its file
+   * @param id primary key in DB of the image
+   * @param filename
+   * @return descriptors, to be released by the caller
+   */
+  Mat get(int id, String filename) {
+    byte[] kept;
+    synchronized (this) {
+      kept = descriptors.get(id);
+      if (kept != null) {
+        hits++;
+        return fromBytes(kept, features.descriptorType());
+      }
+      misses++;
+    }
+
+    kept = load(id);
+    Mat computed;
+    if (kept != null) {
+      computed = fromBytes(kept, features.descriptorType());
+    }
+    else {
+      Mat image = Imgcodecs.imread(filename, Imgcodecs.IMREAD_UNCHANGED);
+      try {
+        if (image.empty()) {
+          throw new IllegalArgumentException("Cannot read image " + filename); // not kept as no features
+        }
+        computed = features.descriptors(image);
+      } finally {
+        image.release();
+      }
+      kept = toBytes(computed);
+      save(id, kept);
+    }
+    put(id, kept);
+    return computed;
+  }
+
+  /**
+   * @return toBytes() of the descriptors of an image from the DB or null if they aren't there
+   */
+  private synchronized byte[] load(int id) {
+    if (select == null) {
+      return null;
+    }
+    try {
+      select.setInt(1, id);
+      try (ResultSet rs = select.executeQuery()) {
+        if (!rs.next()) {
+          return null;
+        }
+        loaded++;
+        return rs.getBytes(1);
+      }
+    } catch (SQLException e) {
+      System.err.println("Cannot read " + features.name() + " descriptors " + id + " " + e);
+      return null;
+    }
+  }
+
+  private synchronized void save(int id, byte[] kept) {
+    if (merge == null) {
+      return;
+    }
+    try {
+      merge.setInt(1, id);
+      merge.setBytes(2, kept);
+      merge.execute();
+    } catch (SQLException e) {
+      System.err.println("Cannot save " + features.name() + " descriptors " + id + " " + e);
+    }
+  }
+
+  /**
+   * Keep descriptors in memory, dropping the least recently used to stay within the budget
+   * @param id
+   * @param computed toBytes() of the descriptors
+   */
+  private synchronized void put(int id, byte[] computed) {
+    byte[] replaced = descriptors.put(id, computed);
+    bytes += computed.length;
+    if (replaced != null) { // another thread read the same image
+      bytes -= replaced.length;
+    }
+    Iterator<Map.Entry<Integer, byte[]>> eldest = descriptors.entrySet().iterator();
+    while (bytes > budget && eldest.hasNext()) {
+      bytes -= eldest.next().getValue().length;
+      eldest.remove();
+    }
+  }
+
+  /**
+   * @param descriptors float or byte descriptors
+   * @return the number of columns then the floats little endian or the bytes
+   */
+  static byte[] toBytes(Mat descriptors) {
+    int elements = (int) descriptors.total();
+    ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + elements * (int) descriptors.elemSize())
+      .order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(descriptors.cols());
+    if (elements > 0 && descriptors.depth() == CvType.CV_8U) {
+      byte[] bytes = new byte[elements];
+      descriptors.get(0, 0, bytes);
+      buffer.put(bytes);
+    }
+    else if (elements > 0) {
+      float[] floats = new float[elements];
+      descriptors.get(0, 0, floats);
+      buffer.asFloatBuffer().put(floats);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * @param bytes from toBytes()
+   * @param type CvType.CV_32F or CV_8U
+   * @return descriptors
+   */
+  static Mat fromBytes(byte[] bytes, int type) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    int cols = buffer.getInt();
+    if (!buffer.hasRemaining() || cols == 0) {
+      return new Mat();
+    }
+    Mat descriptors;
+    if (type == CvType.CV_8U) {
+      byte[] values = new byte[buffer.remaining()];
+      buffer.get(values);
+      descriptors = new Mat(values.length / cols, cols, type);
+      descriptors.put(0, 0, values);
+    }
+    else {
+      float[] values = new float[buffer.remaining() / Float.BYTES];
+      buffer.asFloatBuffer().get(values);
+      descriptors = new Mat(values.length / cols, cols, type);
+      descriptors.put(0, 0, values);
+    }
+    return descriptors;
+  }
+
+  /**
+   * @return hits, misses and size for the log
+   */
+  synchronized String report() {
+    return String.format("%s descriptor cache %d hits, %d misses, %d from the DB, %d images in %d KB of %d KB",
+      features.name(), hits, misses, loaded, descriptors.size(), bytes >> 10, budget >> 10);
+  }
+}
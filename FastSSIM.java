@@ -0,0 +1,204 @@
+package app;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * MSSIM of 2 thumbnails computed in Java on primitive arrays, the same as the OpenCV Mat version
+ * MSSIM.getMSSIMOpenCV() with its 9 x 9 box filters. (The C++ in the comment at the end of MSSIM
+ * it was converted from uses 11 x 11 Gaussian blurs instead.) -DmssimCheck computes both and
+ * reports the largest difference.
+ *
+ * <p>The 9 x 9 box filters are sums over integral images (summed area tables), 4 lookups for each
+ * pixel whatever the window. An integral image row is made from the row above it as the pixels
+ * are read and only the last WINDOW + 1 rows are kept, so each filtered row is finished as soon as
+ * its window's last row is in and the whole MSSIM is a single pass over the pixels. The per image
+ * terms (mean and variance) are made once with statistics(); mssim() only makes the cross term
+ * for the pair and uses a small array kept by each thread, so it allocates nothing.
+ *
+ * <p>The pixels are padded with the border reflected like Imgproc.blur()'s default
+ * BORDER_REFLECT_101. The sums are of integer pixel values so they're exact in doubles, and like
+ * OpenCV's the means are then rounded to float and the rest of the formula is in float so the
+ * result of 8-bit thumbnails is the same as with single precision Mats. With 16-bit thumbnails
+ * both are only good to about 2e-3 since the variances are differences of large floats.
+ */
+class FastSSIM {
+
+  static final int RADIUS = 4; // of the box filter
+  static final int WINDOW = 2 * RADIUS + 1; // 9 x 9 like Imgproc.blur(I, mu, new Size(9, 9))
+  static final float C1 = 6.5025f, C2 = 58.5225f; // (0.01 * 255)^2, (0.03 * 255)^2
+  private static final double SCALE = 1. / (WINDOW * WINDOW); // of a box sum to its mean
+  private static final int RING = WINDOW + 1; // rows of an integral image kept
+
+  private static final ThreadLocal<double[]> rings = ThreadLocal.withInitial(() -> new double[0]);
+
+  /**
+   * @param width of the image
+   * @return width of the image padded for the box filter
+   */
+  static int padded(int width) {
+    return width + 2 * RADIUS;
+  }
+
+  /**
+   * Index of a pixel outside the image reflected back into it like BORDER_REFLECT_101
+   * @param i index, may be outside the image
+   * @param n pixels in the row or column
+   * @return index in the image
+   */
+  static int reflect101(int i, int n) {
+    if (n == 1) {
+      return 0;
+    }
+    while (i < 0 || i >= n) {
+      i = i < 0 ? -i : 2 * n - 2 - i;
+    }
+    return i;
+  }
+
+  /**
+   * Pad an 8-bit image for the box filter
+   * @param pixels unsigned bytes, rows one after another from index 0; read without moving its position
+   * @param width
+   * @param height
+   * @return padded(width) x padded(height) pixels as float
+   */
+  static float[] pad(ByteBuffer pixels, int width, int height) {
+    int paddedWidth = padded(width);
+    float[] padded = new float[paddedWidth * padded(height)];
+    for (int y = 0; y < padded(height); y++) {
+      int row = reflect101(y - RADIUS, height) * width;
+      for (int x = 0; x < paddedWidth; x++) {
+        padded[y * paddedWidth + x] = pixels.get(row + reflect101(x - RADIUS, width)) & 0xFF;
+      }
+    }
+    return padded;
+  }
+
+  /**
+   * Pad an image of any depth for the box filter
+   * @param pixels rows one after another
+   * @param width
+   * @param height
+   * @return padded(width) x padded(height) pixels
+   */
+  static float[] pad(float[] pixels, int width, int height) {
+    int paddedWidth = padded(width);
+    float[] padded = new float[paddedWidth * padded(height)];
+    for (int y = 0; y < padded(height); y++) {
+      int row = reflect101(y - RADIUS, height) * width;
+      for (int x = 0; x < paddedWidth; x++) {
+        padded[y * paddedWidth + x] = pixels[row + reflect101(x - RADIUS, width)];
+      }
+    }
+    return padded;
+  }
+
+  /**
+   * The terms of MSSIM that only depend on one image
+   * @param padded pad() of the image
+   * @param width of the image
+   * @param height of the image
+   * @param mu filled with the box filtered pixels
+   * @param sigma_2 filled with the box filtered squared pixels less mu^2
+   */
+  static void statistics(float[] padded, int width, int height, float[] mu, float[] sigma_2) {
+    int paddedWidth = padded(width);
+    int stride = paddedWidth + 1; // an integral image row has a 0 in front
+    double[] ring = ring(2 * RING * stride); // integral images of I then of I^2
+    int offset_2 = RING * stride;
+
+    Arrays.fill(ring, 0, stride, 0.); // integral row 0 is all 0
+    Arrays.fill(ring, offset_2, offset_2 + stride, 0.);
+    for (int y = 0; y < padded(height); y++) {
+      int above = (y % RING) * stride;
+      int row = ((y + 1) % RING) * stride;
+      int pixel = y * paddedWidth;
+      double sum = 0., sum_2 = 0.;
+      ring[row] = 0.;
+      ring[offset_2 + row] = 0.;
+      for (int x = 0; x < paddedWidth; x++) {
+        double I = padded[pixel + x];
+        sum += I;
+        sum_2 += I * I;
+        ring[row + x + 1] = ring[above + x + 1] + sum;
+        ring[offset_2 + row + x + 1] = ring[offset_2 + above + x + 1] + sum_2;
+      }
+
+      int outY = y + 1 - WINDOW; // filtered row whose window ends at this row
+      if (outY >= 0) {
+        int top = (outY % RING) * stride;
+        int out = outY * width;
+        for (int x = 0; x < width; x++) {
+          float m = (float) ((ring[row + x + WINDOW] - ring[top + x + WINDOW] - ring[row + x] + ring[top + x]) * SCALE);
+          float m_2 = (float) ((ring[offset_2 + row + x + WINDOW] - ring[offset_2 + top + x + WINDOW]
+            - ring[offset_2 + row + x] + ring[offset_2 + top + x]) * SCALE);
+          mu[out + x] = m;
+          sigma_2[out + x] = m_2 - m * m;
+        }
+      }
+    }
+  }
+
+  /**
+   * MSSIM of 2 images of the same size from their statistics(); only the cross term is computed
+   * @param padded1 pad() of an image
+   * @param mu1
+   * @param sigma1_2
+   * @param padded2 pad() of the other image
+   * @param mu2
+   * @param sigma2_2
+   * @param width of the images
+   * @param height of the images
+   * @return mean of the SSIM map
+   */
+  static double mssim(float[] padded1, float[] mu1, float[] sigma1_2, float[] padded2, float[] mu2, float[] sigma2_2,
+      int width, int height) {
+    int paddedWidth = padded(width);
+    int stride = paddedWidth + 1;
+    double[] ring = ring(RING * stride); // integral image of I1 * I2
+
+    Arrays.fill(ring, 0, stride, 0.);
+    double ssim = 0.;
+    for (int y = 0; y < padded(height); y++) {
+      int above = (y % RING) * stride;
+      int row = ((y + 1) % RING) * stride;
+      int pixel = y * paddedWidth;
+      double sum = 0.;
+      ring[row] = 0.;
+      for (int x = 0; x < paddedWidth; x++) {
+        sum += (double) padded1[pixel + x] * padded2[pixel + x];
+        ring[row + x + 1] = ring[above + x + 1] + sum;
+      }
+
+      int outY = y + 1 - WINDOW;
+      if (outY >= 0) {
+        int top = (outY % RING) * stride;
+        int out = outY * width;
+        for (int x = 0; x < width; x++) {
+          float m1 = mu1[out + x], m2 = mu2[out + x];
+          float mu1_mu2 = m1 * m2;
+          float sigma12 = (float) ((ring[row + x + WINDOW] - ring[top + x + WINDOW] - ring[row + x] + ring[top + x])
+            * SCALE) - mu1_mu2;
+          float t3 = (2f * mu1_mu2 + C1) * (2f * sigma12 + C2);
+          float t4 = (m1 * m1 + m2 * m2 + C1) * (sigma1_2[out + x] + sigma2_2[out + x] + C2);
+          ssim += t3 / t4;
+        }
+      }
+    }
+    return ssim / ((double) width * height);
+  }
+
+  /**
+   * @param length doubles needed
+   * @return this thread's integral image rows, grown if needed
+   */
+  private static double[] ring(int length) {
+    double[] ring = rings.get();
+    if (ring.length < length) {
+      ring = new double[length];
+      rings.set(ring);
+    }
+    return ring;
+  }
+}
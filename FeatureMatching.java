@@ -1,69 +1,135 @@
-package app;
-
-import org.opencv.core.DMatch;
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfDMatch;
-import org.opencv.core.MatOfKeyPoint;
-import org.opencv.features2d.DescriptorMatcher;
-import org.opencv.features2d.SIFT;
-
-import java.util.ArrayList;
-import java.util.List;
-
-class FeatureMatching {
-
- public List<DMatch> SIFTFLANNMatching(Mat img1, Mat img2) {
-
-    //convert img1 & img2 to grey
-    Utility.desaturate(img1, img1);
-    Utility.desaturate(img2, img2);
-    
-    //-- Step 1: Detect the keypoints using SIFT Detector, compute the descriptors
-    double contrastThreshold = 0.03; 
-    double edgeThreshold = 2.0;
-    double sigma = 1.0;
-    int nOctaveLayers = 3; 
-    int hessianThreshold = 400;
-
-    SIFT detector = SIFT.create(hessianThreshold, nOctaveLayers, contrastThreshold, edgeThreshold, sigma);
-    
-    MatOfKeyPoint keypoints1 = new MatOfKeyPoint(), keypoints2 = new MatOfKeyPoint();
-    Mat descriptors1 = new Mat(), descriptors2 = new Mat();
-    
-    detector.detectAndCompute(img1, new Mat(), keypoints1, descriptors1);
-    detector.detectAndCompute(img2, new Mat(), keypoints2, descriptors2);
-    
-    //-- Step 2: Matching descriptor vectors with a FLANN based matcher
-    // Since SIFT is a floating-point descriptor NORM_L2 is used
-    DescriptorMatcher matcher = DescriptorMatcher.create(DescriptorMatcher.FLANNBASED);
-    List<MatOfDMatch> knnMatches = new ArrayList<>();
-    matcher.knnMatch(descriptors1, descriptors2, knnMatches, 2);
-    
-    //-- Filter matches using the Lowe's ratio test
-    float ratioThresh = 0.7f;
-    List<DMatch> listOfGoodMatches = new ArrayList<>();
-    for (int i = 0; i < knnMatches.size(); i++) {
-        if (knnMatches.get(i).rows() > 1) {
-            DMatch[] matches = knnMatches.get(i).toArray();
-            if (matches[0].distance < ratioThresh * matches[1].distance) {
-                listOfGoodMatches.add(matches[0]);
-            }
-        }
-    }
-    return listOfGoodMatches;
-
-    }
-}
-// import org.opencv.core.MatOfByte;
-// import org.opencv.core.Scalar;
-// import org.opencv.features2d.Features2d;
-    // MatOfDMatch goodMatches = new MatOfDMatch();
-    // goodMatches.fromList(listOfGoodMatches);
-    // //-- Draw matches
-    // Mat imgMatches = new Mat();
-    // Features2d.drawMatches(img1, keypoints1, img2, keypoints2, goodMatches, imgMatches, Scalar.all(-1),
-    //         Scalar.all(-1), new MatOfByte(), Features2d.DrawMatchesFlags_NOT_DRAW_SINGLE_POINTS);
-    // //-- Show detected matches
-    // HighGui.imshow("Good Matches", imgMatches);
-    // HighGui.waitKey(0);
+package app;
+
+import org.opencv.core.CvType;
+import org.opencv.core.DMatch;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.SIFT;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts the features 2 images have in common with SIFT descriptors and a FLANN matcher; the
+ * tie-breaker when MSSIM calls a pair dissimilar. OrbMatching is the faster alternative.
+ */
+class FeatureMatching {
+
+    // SIFT parameters
+    final double contrastThreshold = 0.03; 
+    final double edgeThreshold = 2.0;
+    final double sigma = 1.0;
+    final int nOctaveLayers = 3; 
+    final int hessianThreshold = 400;
+
+    // a detector and matcher for each verification thread instead of one for every pair
+    private final ThreadLocal<SIFT> detector = ThreadLocal.withInitial(
+        () -> SIFT.create(hessianThreshold, nOctaveLayers, contrastThreshold, edgeThreshold, sigma));
+    private final ThreadLocal<DescriptorMatcher> matcher = ThreadLocal.withInitial(
+        () -> DescriptorMatcher.create(DescriptorMatcher.FLANNBASED));
+
+ /**
+  * @return name of the descriptors for the log and the DB
+  */
+ String name() {
+    return "Sift";
+    }
+
+ /**
+  * @return default matches in common for the images to be similar
+  */
+ int defaultFeatures() {
+    return 10;
+    }
+
+ /**
+  * @param name of the descriptors
+  * @return matching with the descriptors, SIFT if the name isn't known
+  */
+ static FeatureMatching create(String name) {
+    return "orb".equalsIgnoreCase(name) ? new OrbMatching() : new FeatureMatching();
+    }
+
+ /**
+  * @return CvType of the descriptors
+  */
+ int descriptorType() {
+    return CvType.CV_32F;
+    }
+
+ /**
+  * SIFT descriptors of an image; they depend only on the image so they can be kept
+  * @param img converted to grey
+  * @return a row of descriptor for each keypoint
+  */
+ Mat descriptors(Mat img) {
+
+    //convert img to grey
+    Utility.desaturate(img, img);
+    
+    //-- Step 1: Detect the keypoints using SIFT Detector, compute the descriptors
+    MatOfKeyPoint keypoints = new MatOfKeyPoint();
+    Mat descriptors = new Mat();
+    Mat mask = new Mat();
+    
+    detector.get().detectAndCompute(img, mask, keypoints, descriptors);
+    keypoints.release(); // only the descriptors are matched
+    mask.release();
+    return descriptors;
+    }
+
+ /**
+  * @return the matcher of this thread
+  */
+ DescriptorMatcher matcher() {
+    return matcher.get();
+    }
+
+ /**
+  * Match the descriptors of 2 images
+  * @param descriptors1
+  * @param descriptors2
+  * @return the matches that pass Lowe's ratio test
+  */
+ List<DMatch> matchDescriptors(Mat descriptors1, Mat descriptors2) {
+    
+    List<DMatch> listOfGoodMatches = new ArrayList<>();
+    if (descriptors1.empty() || descriptors2.empty()) {
+        return listOfGoodMatches; // no keypoints
+    }
+
+    //-- Step 2: Matching descriptor vectors with a FLANN based matcher
+    // Since SIFT is a floating-point descriptor NORM_L2 is used
+    List<MatOfDMatch> knnMatches = new ArrayList<>();
+    matcher().knnMatch(descriptors1, descriptors2, knnMatches, 2);
+    
+    //-- Filter matches using the Lowe's ratio test
+    float ratioThresh = 0.7f;
+    for (int i = 0; i < knnMatches.size(); i++) {
+        if (knnMatches.get(i).rows() > 1) {
+            DMatch[] matches = knnMatches.get(i).toArray();
+            if (matches[0].distance < ratioThresh * matches[1].distance) {
+                listOfGoodMatches.add(matches[0]);
+            }
+        }
+        knnMatches.get(i).release();
+    }
+    return listOfGoodMatches;
+
+    }
+}
+// import org.opencv.core.MatOfByte;
+// import org.opencv.core.Scalar;
+// import org.opencv.features2d.Features2d;
+    // MatOfDMatch goodMatches = new MatOfDMatch();
+    // goodMatches.fromList(listOfGoodMatches);
+    // //-- Draw matches
+    // Mat imgMatches = new Mat();
+    // Features2d.drawMatches(img1, keypoints1, img2, keypoints2, goodMatches, imgMatches, Scalar.all(-1),
+    //         Scalar.all(-1), new MatOfByte(), Features2d.DrawMatchesFlags_NOT_DRAW_SINGLE_POINTS);
+    // //-- Show detected matches
+    // HighGui.imshow("Good Matches", imgMatches);
+    // HighGui.waitKey(0);
     // System.exit(0);
\ No newline at end of file
@@ -2,6 +2,7 @@ package app;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.opencv.core.*;
 import org.opencv.imgproc.*;
@@ -25,10 +26,82 @@ public class GripPipelineSimilar {
 	private Mat cvResize1Output = new Mat();
 	private Mat cvAdaptivethresholdOutput = new Mat();
 
+	// Reused by the multi-channel pipeline so an instance can run image after image with no new
+	// native allocations once the outputs have their sizes
+	private final Mat[] outputs = { convertOutput, cvResize0Output, blurOutput, splitOutput, normalizeOutput,
+		equalizeOutput, cvResize1Output, cvAdaptivethresholdOutput };
+	private final long[] outputData = new long[outputs.length]; // native buffer of each output as last seen
+	private final Size resize0Size = new Size(RESIZE0_SIZE, RESIZE0_SIZE);
+	private final Size resize1Size = new Size(signatureSize, signatureSize);
+	private final Size blurKernel = new Size();
+	private byte[] thresholdBits = new byte[0];
+
+	// native allocations by all the pipelines - Mats created and output buffers (re)allocated
+	private static final AtomicLong nativeAllocations = new AtomicLong();
+
+	// Parameters of the multi-channel pipeline
+	static final int CONVERT_TYPE = Imgproc.COLOR_BGR2YUV;
+	static final int RESIZE0_SIZE = 160;
+	static final BlurType BLUR_TYPE = BlurType.GAUSSIAN;
+	static final double BLUR_RADIUS = 8.;
+	static final double NORMALIZE_ALPHA = 0.0;
+	static final double NORMALIZE_BETA = 255.0;
+	static final double THRESHOLD_BLOCKSIZE = 3.0;
+	static final double THRESHOLD_C = 0.0;
+	// final resize; signature is this squared bits in each channel; 8 is 64 bits, 16 is 256 bits like findimagedupes
+	static int signatureSize = 8;
+	static final int MAX_SIGNATURE_SIZE = RESIZE0_SIZE; // resized down from the first resize
+
 	static {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 	}
 
+	public GripPipelineSimilar() {
+		nativeAllocations.addAndGet(outputs.length);
+	}
+
+	/**
+	 * This method is a getter for the count of native allocations by all the pipelines, the Mats
+	 * created and the output buffers allocated or reallocated by the multi-channel process
+	 * @return allocations so far
+	 */
+	static long nativeAllocations() {
+		return nativeAllocations.get();
+	}
+
+	/**
+	 * Count the outputs whose native buffer changed since last seen
+	 */
+	private void countReallocations() {
+		for (int i = 0; i < outputs.length; i++) {
+			long data = outputs[i].dataAddr();
+			if (data != outputData[i]) {
+				if (data != 0) {
+					nativeAllocations.incrementAndGet();
+				}
+				outputData[i] = data;
+			}
+		}
+	}
+
+	/**
+	 * @return bits in each channel of the signature
+	 */
+	static int signatureBits() {
+		return signatureSize * signatureSize;
+	}
+
+	/**
+	 * Describes the multi-channel pipeline parameters. Signatures computed with a different
+	 * description are not comparable.
+	 * @return parameters of the pipeline
+	 */
+	static String fingerprint() {
+		return "convert " + CONVERT_TYPE + ", resize " + RESIZE0_SIZE + " linear, " + BLUR_TYPE + " " + BLUR_RADIUS
+			+ ", normalize minmax " + NORMALIZE_ALPHA + "-" + NORMALIZE_BETA + ", equalize, resize " + signatureSize
+			+ " linear, adaptive threshold mean binary " + THRESHOLD_BLOCKSIZE + " " + THRESHOLD_C;
+	}
+
 	/**
 	 * This is the primary method that runs the entire pipeline and updates the outputs.
 	 */
@@ -95,6 +168,68 @@ public class GripPipelineSimilar {
 		cvAdaptivethreshold(cvAdaptivethresholdSrc, cvAdaptivethresholdMaxvalue, cvAdaptivethresholdAdaptivemethod, cvAdaptivethresholdThresholdtype, cvAdaptivethresholdBlocksize, cvAdaptivethresholdC, cvAdaptivethresholdOutput);
 	}
 
+	/**
+	 * Runs the pipeline for several channels at once. The color conversion, first resize and
+	 * blur are done once and each selected plane extracted from the blurred image for the rest of
+	 * the pipeline. The output Mats are reused so only the conversion of the full size image
+	 * allocates when the image size changes.
+	 * @param source0 image
+	 * @param startChannel first channel of YUV
+	 * @param endChannel last channel of YUV
+	 * @return signature words of each of the 3 channels, 1 bit per pixel of the final threshold; 0 for unselected channels
+	 */
+	public long[][] process(Mat source0, int startChannel, int endChannel) {
+		// Step Convert B&W to color so all are like color
+		if (source0.channels() <= 2) {
+			convert(source0, source0, Imgproc.COLOR_GRAY2BGR);
+		}
+		// Step Convert0:
+		convert(source0, convertOutput, CONVERT_TYPE);
+		// Step CV_resize0:
+		cvResize(convertOutput, resize0Size, 0., 0., Imgproc.INTER_LINEAR, cvResize0Output);
+		// Step Blur0:
+		blur(cvResize0Output, BLUR_TYPE, BLUR_RADIUS, blurOutput);
+
+		long[][] hash = new long[3][Hamming.words(signatureBits())];
+		for (int channel = startChannel; channel <= endChannel; channel++) {
+			// Step Split0: the one plane into the reused Mat
+			Core.extractChannel(blurOutput, splitOutput, channel);
+			// Step Normalize0:
+			normalize(splitOutput, Core.NORM_MINMAX, NORMALIZE_ALPHA, NORMALIZE_BETA, normalizeOutput);
+			// Step Equalize0:
+			equalize(normalizeOutput, equalizeOutput);
+			// Step CV_resize1:
+			cvResize(equalizeOutput, resize1Size, 0., 0., Imgproc.INTER_LINEAR, cvResize1Output);
+			// Step CV_adaptiveThreshold0:
+			cvAdaptivethreshold(cvResize1Output, 255.0, Imgproc.ADAPTIVE_THRESH_MEAN_C, Imgproc.THRESH_BINARY,
+				THRESHOLD_BLOCKSIZE, THRESHOLD_C, cvAdaptivethresholdOutput);
+
+			hash(cvAdaptivethresholdOutput, hash[channel]);
+		}
+
+		countReallocations();
+		return hash;
+	}
+
+	/**
+	 * Compresses a binary image into signature words, the first pixel is the low order bit of the first word
+	 * @param binary threshold output
+	 * @param hash signature words to set
+	 */
+	private void hash(Mat binary, long[] hash) {
+		if (thresholdBits.length != binary.total()) {
+			thresholdBits = new byte[(int) binary.total()];
+		}
+		byte[] temp = thresholdBits;
+		binary.get(0, 0, temp);
+
+		for (int idx = 0; idx < Math.min(64 * hash.length, temp.length); idx++) {
+			if (temp[idx] != 0) {
+				hash[idx / 64] = hash[idx / 64] | 1L << (idx % 64);
+			}
+		}
+	}
+
 	/**
 	 * This method is a getter for the output of a Convert.
 	 * @return Mat output from Convert.
@@ -217,11 +352,11 @@ public class GripPipelineSimilar {
 		switch(type){
 			case BOX:
 				kernelSize = 2 * radius + 1;
-				Imgproc.blur(input, output, new Size(kernelSize, kernelSize));
+				Imgproc.blur(input, output, kernel(kernelSize));
 				break;
 			case GAUSSIAN:
 				kernelSize = 6 * radius + 1;
-				Imgproc.GaussianBlur(input,output, new Size(kernelSize, kernelSize), radius);
+				Imgproc.GaussianBlur(input,output, kernel(kernelSize), radius);
 				break;
 			case MEDIAN:
 				kernelSize = 2 * radius + 1;
@@ -233,6 +368,17 @@ public class GripPipelineSimilar {
 		}
 	}
 
+	/**
+	 * The blur kernel size reused
+	 * @param kernelSize width and height
+	 * @return kernel size
+	 */
+	private Size kernel(int kernelSize) {
+		blurKernel.width = kernelSize;
+		blurKernel.height = kernelSize;
+		return blurKernel;
+	}
+
 	/**
 	 * Returns the selected channel from a multi-channel mat 
 	 * @param input
@@ -0,0 +1,73 @@
+package app;
+
+/**
+ * Hamming distance between image signatures.
+ *
+ * <p>A signature is 3 channels Y U V of 1 bit per pixel of the final pipeline threshold, each
+ * channel packed into as many 64-bit words as needed; the first pixel is the low order bit of
+ * the first word.
+ */
+class Hamming {
+
+  /**
+   * Number of 64-bit words in each channel of a signature
+   * @param bits signature bits in a channel
+   * @return words
+   */
+  static int words(int bits) {
+    return (bits + 63) / 64;
+  }
+
+  /**
+   * Number of different bits in one channel
+   * @param a channel words of one signature
+   * @param b channel words of other signature
+   * @return count of 1's in the XOR difference
+   */
+  static int distance(long[] a, long[] b) {
+    int count = 0;
+    for (int word = 0; word < a.length; word++) {
+      count += Long.bitCount(a[word] ^ b[word]);
+    }
+    return count;
+  }
+
+  /**
+   * Compute similarity index as the Hamming Distance as the number of different bits between the two compressed
+   * signatures. That is the number of 1's in the XOR difference.  Suggested current implementation is it
+   * counts the similar bits in Y plane and one fourth the count of bits in U and V planes.
+   * Lower count means more similar.
+   * @param a signature Y U V
+   * @param b signature Y U V
+   * @return weighted distance
+   */
+  static int similarity(long[][] a, long[][] b) {
+    return distance(a[0], b[0]) + ((distance(a[1], b[1]) + distance(a[2], b[2])) / 4);
+  }
+
+  /**
+   * Signature channel as stored in the DB
+   * @param words channel words
+   * @return 8 bytes per word, low order byte first
+   */
+  static byte[] toBytes(long[] words) {
+    byte[] bytes = new byte[words.length * 8];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (words[i / 8] >>> 8 * (i % 8));
+    }
+    return bytes;
+  }
+
+  /**
+   * Signature channel from the DB
+   * @param bytes 8 bytes per word, low order byte first
+   * @return channel words
+   */
+  static long[] fromBytes(byte[] bytes) {
+    long[] words = new long[bytes.length / 8];
+    for (int i = 0; i < bytes.length; i++) {
+      words[i / 8] |= (bytes[i] & 0xFFL) << 8 * (i % 8);
+    }
+    return words;
+  }
+}
@@ -0,0 +1,57 @@
+package app;
+
+/**
+ * Compare one signature to a block of signatures.
+ *
+ * <p>This is the scalar kernel, one pair at a time with Long.bitCount. The Vector API kernel
+ * VectorHamming does the same several pairs at a time but needs the incubating module
+ * jdk.incubator.vector (--add-modules jdk.incubator.vector to compile and run) so it's only
+ * loaded if the module is there. It's in its own source folder, vector, compiled separately on
+ * JDK 16 or later so the rest builds without the module.
+ */
+class HammingKernel {
+
+  /**
+   * The Vector API kernel if wanted and the module is available otherwise the scalar kernel
+   * @param vector use the Vector API kernel if possible
+   * @return kernel
+   */
+  static HammingKernel create(boolean vector) {
+    if (vector) {
+      if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+        try {
+          return (HammingKernel) Class.forName("app.VectorHamming").getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+          System.out.println("Vector API kernel not compiled [vector/VectorHamming.java], using scalar kernel");
+        } catch (ReflectiveOperationException | LinkageError e) {
+          System.err.println("Vector API kernel not loaded, using scalar " + e);
+        }
+      }
+      else {
+        System.out.println("Vector API not available [--add-modules jdk.incubator.vector], using scalar kernel");
+      }
+    }
+    return new HammingKernel();
+  }
+
+  /**
+   * Compare a row to a block of rows and keep the similar pairs
+   * @param index signatures
+   * @param a row
+   * @param from first row of the block
+   * @param to end of the block
+   * @param maxDifferences largest similarity to keep
+   * @param pairs similar pairs packed by PairScan.pair(a, b) in ascending order of b
+   */
+  void compare(SignatureIndex index, int a, int from, int to, int maxDifferences, PairScan.PairList pairs) {
+    for (int b = from; b < to; b++) {
+      if (index.similarity(a, b) <= maxDifferences) {
+        pairs.add(PairScan.pair(a, b));
+      }
+    }
+  }
+
+  String name() {
+    return "scalar";
+  }
+}
@@ -0,0 +1,68 @@
+package app;
+
+/**
+ * Result of computing the signature of one image file.
+ *
+ * <p>Produced by the (possibly many) ingest workers and consumed by the single
+ * database writer. Any error is captured here per image instead of through a shared
+ * System.err redirection so workers can run concurrently.
+ */
+class ImageSignature {
+
+  final int id; // file sequence number used as primary key in DB
+  final String filename; // canonical path
+  final long size; // file size and last modified time identify the version of the file indexed
+  final long modified;
+  final int replaces; // older version of the file in the index: its id, 0 if unreadable, NOT_INDEXED if none
+  final long[][] hash; // 3 channels Y U V of signature words; null if the image could not be processed
+  final String error; // reason the image could not be processed; null if no error
+
+  ImageSignature(IndexedFile file, long[][] hash) {
+    this.id = file.id;
+    this.filename = file.filename;
+    this.size = file.size;
+    this.modified = file.modified;
+    this.replaces = file.replaces;
+    this.hash = hash;
+    this.error = null;
+  }
+
+  ImageSignature(IndexedFile file, String error) {
+    this.id = file.id;
+    this.filename = file.filename;
+    this.size = file.size;
+    this.modified = file.modified;
+    this.replaces = file.replaces;
+    this.hash = null;
+    this.error = error;
+  }
+
+  static final int NOT_INDEXED = -1;
+
+  boolean failed() {
+    return error != null;
+  }
+
+  /**
+   * A file found by the directory walk and the version of it in the signature index
+   */
+  static class IndexedFile {
+    final int id; // primary key in the DB; 0 for a file remembered as unreadable
+    final String filename;
+    final long size;
+    final long modified;
+    final int replaces; // older version of the file in the index: its id, 0 if unreadable, NOT_INDEXED if none
+
+    IndexedFile(int id, String filename, long size, long modified, int replaces) {
+      this.id = id;
+      this.filename = filename;
+      this.size = size;
+      this.modified = modified;
+      this.replaces = replaces;
+    }
+
+    boolean sameVersion(long size, long modified) {
+      return this.size == size && this.modified == modified;
+    }
+  }
+}
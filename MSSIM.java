@@ -1,204 +1,336 @@
-package app;
-
-// Similarity between 2 images
-
-// Mean Structural Similarity (MSSIM)
-// The MSSIM method converted to Java from the C++ from:
-// https://docs.opencv.org/master/d5/dc4/tutorial_video_input_psnr_ssim.html
-// Video Input with OpenCV and similarity measurement
-
-// usage:     double mssim = MSSIM.getMSSIM( src1, src2 ).val[0];
-// mssim == 1.0 is src1 and src2 essentially identical;  mssim > 0.9 similar; mssim < 0.4 very different;  mssim == 0.0 completely different
-// good index seems to have fewer false similars than the signature/hash method but at a huge cost
-
-import org.opencv.imgproc.Imgproc;
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
-import org.opencv.core.Size;
-import org.opencv.core.Scalar;
-import org.opencv.core.Core;
-
-public class MSSIM
-{
-    static Scalar getMSSIM( Mat iA, Mat iB) {
-
-    Mat i1 = Mat.zeros(1, 1, CvType.CV_8UC1);
-    Mat i2 = Mat.zeros(1, 1, CvType.CV_8UC1);
-    Imgproc.resize(iA, i1, new Size(128, 128), 0., 0., Imgproc.INTER_LINEAR);
-    Imgproc.resize(iB, i2, new Size(128, 128), 0., 0., Imgproc.INTER_LINEAR);
-    final Scalar C1 = new Scalar(6.5025), C2 = new Scalar(58.5225);
-
-    /***************************** INITS **********************************/
-    desaturate(i1, i1);
-    desaturate(i2, i2);
-
-    int d     = CvType.CV_32F;
-
-    Mat I1 = new Mat();
-    Mat I2 = new Mat();
-    i1.convertTo(I1, d);           // cannot calculate on one byte large values
-    i2.convertTo(I2, d);
-    i1.release();
-    i2.release();
-
-    Mat I2_2   = I2.mul(I2);        // I2^2
-    Mat I1_2   = I1.mul(I1);        // I1^2
-    Mat I1_I2  = I1.mul(I2);        // I1 * I2
-
-    /*************************** END INITS **********************************/
-
-    Mat mu1 = new Mat();
-    Mat mu2 = new Mat();   // PRELIMINARY COMPUTING
-    Imgproc.blur(I1, mu1, new Size(9, 9));
-    Imgproc.blur(I2, mu2, new Size(9, 9));
-
-    I1.release();
-    I2.release();
-
-    //Imgproc.GaussianBlur(I1, mu1, new Size(11, 11), 1.5);
-    //Imgproc.GaussianBlur(I2, mu2, new Size(11, 11), 1.5);
-
-    Mat mu1_2   =   mu1.mul(mu1);
-    Mat mu2_2   =   mu2.mul(mu2);
-    Mat mu1_mu2 =   mu1.mul(mu2);
-
-    mu1.release();
-    mu2.release();
-
-    Mat sigma1_2=new Mat(), sigma2_2=new Mat(), sigma12=new Mat();
-
-    Imgproc.blur(I1_2, sigma1_2, new Size(9, 9)); // box filter - good and fast
-    //Imgproc.GaussianBlur(I1_2, sigma1_2, new Size(11, 11), 1.5);
-    //sigma1_2 -= mu1_2;
-    Core.subtract(sigma1_2, mu1_2, sigma1_2);
-
-    Imgproc.blur(I2_2, sigma2_2, new Size(9, 9)); // box filter - good and fast
-    //Imgproc.GaussianBlur(I2_2, sigma2_2, new Size(11, 11), 1.5);
-    //sigma2_2 -= mu2_2;
-    Core.subtract(sigma2_2, mu2_2, sigma2_2);
-
-    Imgproc.blur(I1_I2, sigma12, new Size(9, 9)); // box filter - good and fast
-    I2_2.release();
-    I1_2.release();
-    I1_I2.release();
-    //Imgproc.GaussianBlur(I1_I2, sigma12, new Size(11, 11), 1.5);
-    //sigma12 -= mu1_mu2;
-    Core.subtract(sigma12, mu1_mu2, sigma12);
-
-    ///////////////////////////////// FORMULA ////////////////////////////////
-    Mat t1= new Mat(), t2= new Mat(), t3= new Mat();
-
-    //t1 = 2 * mu1_mu2 + C1;
- 
-    Core.multiply(mu1_mu2, new Scalar(2., 2., 2.), t1);
-    Core.add(t1, C1, t1);
- 
-    //t2 = 2 * sigma12 + C2;
-    Core.multiply(sigma12, new Scalar(2. , 2., 2.), t2);
-    Core.add(t2, C2, t2);
-
-    t3 = t1.mul(t2);              // t3 = ((2*mu1_mu2 + C1).*(2*sigma12 + C2))
-
-    //t1 = mu1_2 + mu2_2 + C1;
-    Core.add(mu1_2, mu2_2, t1);
-    Core.add(t1, C1, t1);
-   
-    //t2 = sigma1_2 + sigma2_2 + C2;
-    Core.add(sigma1_2, sigma2_2, t2);
-    Core.add(t2, C2, t2);
- 
-    t1 = t1.mul(t2);               // t1 =((mu1_2 + mu2_2 + C1).*(sigma1_2 + sigma2_2 + C2))
- 
-    Mat ssim_map=new Mat();
-    Core.divide(t3, t1, ssim_map);      // ssim_map =  t3./t1;
-
-    Scalar mssim = Core.mean( ssim_map ); // mssim = average of ssim map
-
-    t1.release();
-    t2.release();
-    t3.release();
-    mu1_2.release();
-    mu2_2.release();
-    mu1_mu2.release();
-    sigma1_2.release();
-    sigma2_2.release();
-    sigma12.release();
-    ssim_map.release();
-
-    return mssim;
-}
-/**
-	 * Converts a color image into shades of grey.
-	 * @param input The image on which to perform the desaturate.
-	 * @param output The image in which to store the output.
-	 */
-	static private void desaturate(Mat input, Mat output) {
-		switch (input.channels()) {
-			case 1:
-				// If the input is already one channel, it's already desaturated
-				input.copyTo(output);
-				break;
-			case 3:
-				Imgproc.cvtColor(input, output, Imgproc.COLOR_BGR2GRAY);
-				break;
-			case 4:
-				Imgproc.cvtColor(input, output, Imgproc.COLOR_BGRA2GRAY);
-				break;
-			default:
-				throw new IllegalArgumentException("Input to desaturate must have 1, 3, or 4 channels");
-		}
-	}
-}
-/////////////////
-// Scalar getMSSIM( const Mat& i1, const Mat& i2)
-// {
-//     const double C1 = 6.5025, C2 = 58.5225;
-//     /***************************** INITS **********************************/
-//     int d     = CV_32F;
-
-//     Mat I1, I2;
-//     i1.convertTo(I1, d);           // cannot calculate on one byte large values
-//     i2.convertTo(I2, d);
-
-//     Mat I2_2   = I2.mul(I2);        // I2^2
-//     Mat I1_2   = I1.mul(I1);        // I1^2
-//     Mat I1_I2  = I1.mul(I2);        // I1 * I2
-
-//     /*************************** END INITS **********************************/
-
-//     Mat mu1, mu2;   // PRELIMINARY COMPUTING
-//     GaussianBlur(I1, mu1, Size(11, 11), 1.5);
-//     GaussianBlur(I2, mu2, Size(11, 11), 1.5);
-
-//     Mat mu1_2   =   mu1.mul(mu1);
-//     Mat mu2_2   =   mu2.mul(mu2);
-//     Mat mu1_mu2 =   mu1.mul(mu2);
-
-//     Mat sigma1_2, sigma2_2, sigma12;
-
-//     GaussianBlur(I1_2, sigma1_2, Size(11, 11), 1.5);
-//     sigma1_2 -= mu1_2;
-
-//     GaussianBlur(I2_2, sigma2_2, Size(11, 11), 1.5);
-//     sigma2_2 -= mu2_2;
-
-//     GaussianBlur(I1_I2, sigma12, Size(11, 11), 1.5);
-//     sigma12 -= mu1_mu2;
-
-//     ///////////////////////////////// FORMULA ////////////////////////////////
-//     Mat t1, t2, t3;
-
-//     t1 = 2 * mu1_mu2 + C1;
-//     t2 = 2 * sigma12 + C2;
-//     t3 = t1.mul(t2);              // t3 = ((2*mu1_mu2 + C1).*(2*sigma12 + C2))
-
-//     t1 = mu1_2 + mu2_2 + C1;
-//     t2 = sigma1_2 + sigma2_2 + C2;
-//     t1 = t1.mul(t2);               // t1 =((mu1_2 + mu2_2 + C1).*(sigma1_2 + sigma2_2 + C2))
-
-//     Mat ssim_map;
-//     divide(t3, t1, ssim_map);      // ssim_map =  t3./t1;
-
-//     Scalar mssim = mean( ssim_map ); // mssim = average of ssim map
-//     return mssim;
-// }
+package app;
+
+// Similarity between 2 images
+
+// Mean Structural Similarity (MSSIM)
+// The MSSIM method converted to Java from the C++ from:
+// https://docs.opencv.org/master/d5/dc4/tutorial_video_input_psnr_ssim.html
+// Video Input with OpenCV and similarity measurement
+
+// usage:     double mssim = MSSIM.getMSSIM( src1, src2 ).val[0];
+// mssim == 1.0 is src1 and src2 essentially identical;  mssim > 0.9 similar; mssim < 0.4 very different;  mssim == 0.0 completely different
+// good index seems to have fewer false similars than the signature/hash method but at a huge cost
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAccumulator;
+
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.core.Scalar;
+import org.opencv.core.Core;
+
+public class MSSIM
+{
+    static final int THUMBNAIL_SIZE = 128; // MSSIM is computed on thumbnails of this size
+
+    // -DmssimCheck statistics; 8-bit thumbnails should agree to float rounding
+    static final double CHECK_TOLERANCE = 1e-4;
+    static final double CHECK_TOLERANCE_16 = 2e-3;
+    static final AtomicInteger checked = new AtomicInteger();
+    static final AtomicInteger outOfTolerance = new AtomicInteger();
+    static final DoubleAccumulator maxDifference = new DoubleAccumulator(Math::max, 0.);
+
+    static Scalar getMSSIM( Mat iA, Mat iB) {
+
+    Mat i1 = thumbnail(iA);
+    Mat i2 = thumbnail(iB);
+    Scalar mssim = getMSSIMThumbnails(i1, i2);
+    i1.release();
+    i2.release();
+    return mssim;
+}
+
+    /**
+     * The grayscale thumbnail MSSIM compares; depends only on the image so it can be kept
+     * @param image
+     * @return THUMBNAIL_SIZE x THUMBNAIL_SIZE single channel image
+     */
+    static Mat thumbnail(Mat image) {
+    Mat thumbnail = Mat.zeros(1, 1, CvType.CV_8UC1);
+    Imgproc.resize(image, thumbnail, new Size(THUMBNAIL_SIZE, THUMBNAIL_SIZE), 0., 0., Imgproc.INTER_LINEAR);
+    desaturate(thumbnail, thumbnail);
+    return thumbnail;
+}
+
+    /**
+     * MSSIM of 2 thumbnails
+     * @param i1 thumbnail() of an image
+     * @param i2 thumbnail() of the other image
+     * @return MSSIM in val[0]
+     */
+    static Scalar getMSSIMThumbnails( Mat i1, Mat i2) {
+
+    return getMSSIM(new Statistics(i1), new Statistics(i2));
+}
+
+    /**
+     * The terms of MSSIM that depend on only one image, so an image in many pairs only
+     * computes them once. The cross terms of a pair then give exactly the same result.
+     * Computed in Java by FastSSIM without any native Mats.
+     */
+    static class Statistics {
+        final int width;
+        final int height;
+        final float[] I;       // the thumbnail padded for the box filter
+        final float[] mu;      // blurred I
+        final float[] sigma_2; // blurred I^2 - mu^2
+
+        /**
+         * @param thumbnail thumbnail() of an image
+         */
+        Statistics(Mat thumbnail) {
+        this(thumbnail.cols(), thumbnail.rows(), pixels(thumbnail));
+        }
+
+        /**
+         * @param pixels of an 8-bit thumbnail, as kept by ThumbnailStore
+         * @param width
+         * @param height
+         */
+        Statistics(ByteBuffer pixels, int width, int height) {
+        this(width, height, FastSSIM.pad(pixels, width, height));
+        }
+
+        private Statistics(int width, int height, float[] I) {
+        this.width = width;
+        this.height = height;
+        this.I = I;
+        mu = new float[width * height];
+        sigma_2 = new float[width * height];
+        FastSSIM.statistics(I, width, height, mu, sigma_2);
+        }
+
+        /**
+         * @return pixels of a thumbnail padded for the box filter
+         */
+        private static float[] pixels(Mat thumbnail) {
+        if (thumbnail.type() == CvType.CV_8UC1) {
+            byte[] pixels = new byte[(int) thumbnail.total()];
+            thumbnail.get(0, 0, pixels);
+            return FastSSIM.pad(ByteBuffer.wrap(pixels), thumbnail.cols(), thumbnail.rows());
+        }
+        Mat I = new Mat();
+        thumbnail.convertTo(I, CvType.CV_32F); // cannot calculate on one byte large values
+        float[] pixels = new float[(int) I.total()];
+        I.get(0, 0, pixels);
+        I.release();
+        return FastSSIM.pad(pixels, thumbnail.cols(), thumbnail.rows());
+        }
+
+        /**
+         * @return bytes of the arrays
+         */
+        long bytes() {
+        return Float.BYTES * ((long) I.length + mu.length + sigma_2.length);
+        }
+    }
+
+    /**
+     * MSSIM of 2 images from their statistics; only the cross terms are computed
+     * @param s1 statistics of an image
+     * @param s2 statistics of the other image
+     * @return MSSIM in val[0]
+     */
+    static Scalar getMSSIM( Statistics s1, Statistics s2) {
+
+    if (s1.width != s2.width || s1.height != s2.height) {
+        throw new IllegalArgumentException("MSSIM of thumbnails of different sizes");
+    }
+    return new Scalar(FastSSIM.mssim(s1.I, s1.mu, s1.sigma_2, s2.I, s2.mu, s2.sigma_2, s1.width, s1.height));
+}
+
+    /**
+     * MSSIM of 2 thumbnails with OpenCV Mats, as converted from the C++ with its Gaussian blurs
+     * changed to the 9 x 9 box filters FastSSIM uses. The reference FastSSIM is checked against
+     * with -DmssimCheck.
+     * @param i1 thumbnail() of an image
+     * @param i2 thumbnail() of the other image
+     * @return MSSIM in val[0]
+     */
+    static Scalar getMSSIMOpenCV( Mat i1, Mat i2) {
+
+    final Scalar C1 = new Scalar(6.5025), C2 = new Scalar(58.5225);
+
+    /***************************** INITS **********************************/
+    Mat I1 = new Mat(), I2 = new Mat();
+    i1.convertTo(I1, CvType.CV_32F);           // cannot calculate on one byte large values
+    i2.convertTo(I2, CvType.CV_32F);
+
+    Mat I2_2   = I2.mul(I2);        // I2^2
+    Mat I1_2   = I1.mul(I1);        // I1^2
+    Mat I1_I2  = I1.mul(I2);        // I1 * I2
+
+    /*************************** END INITS **********************************/
+
+    Mat mu1 = new Mat(), mu2 = new Mat();   // PRELIMINARY COMPUTING
+    Imgproc.blur(I1, mu1, new Size(9, 9));
+    Imgproc.blur(I2, mu2, new Size(9, 9));
+
+    Mat mu1_2   =   mu1.mul(mu1);
+    Mat mu2_2   =   mu2.mul(mu2);
+    Mat mu1_mu2 =   mu1.mul(mu2);
+
+    Mat sigma1_2 = new Mat(), sigma2_2 = new Mat(), sigma12 = new Mat();
+
+    Imgproc.blur(I1_2, sigma1_2, new Size(9, 9)); // box filter - good and fast
+    Core.subtract(sigma1_2, mu1_2, sigma1_2);
+
+    Imgproc.blur(I2_2, sigma2_2, new Size(9, 9));
+    Core.subtract(sigma2_2, mu2_2, sigma2_2);
+
+    Imgproc.blur(I1_I2, sigma12, new Size(9, 9));
+    Core.subtract(sigma12, mu1_mu2, sigma12);
+
+    ///////////////////////////////// FORMULA ////////////////////////////////
+    Mat t1= new Mat(), t2= new Mat();
+
+    //t1 = 2 * mu1_mu2 + C1;
+    Core.multiply(mu1_mu2, new Scalar(2., 2., 2.), t1);
+    Core.add(t1, C1, t1);
+
+    //t2 = 2 * sigma12 + C2;
+    Core.multiply(sigma12, new Scalar(2. , 2., 2.), t2);
+    Core.add(t2, C2, t2);
+
+    Mat t3 = t1.mul(t2);              // t3 = ((2*mu1_mu2 + C1).*(2*sigma12 + C2))
+
+    //t1 = mu1_2 + mu2_2 + C1;
+    Core.add(mu1_2, mu2_2, t1);
+    Core.add(t1, C1, t1);
+
+    //t2 = sigma1_2 + sigma2_2 + C2;
+    Core.add(sigma1_2, sigma2_2, t2);
+    Core.add(t2, C2, t2);
+
+    Mat t4 = t1.mul(t2);           // t1 =((mu1_2 + mu2_2 + C1).*(sigma1_2 + sigma2_2 + C2))
+
+    Mat ssim_map=new Mat();
+    Core.divide(t3, t4, ssim_map);      // ssim_map =  t3./t1;
+
+    Scalar mssim = Core.mean( ssim_map ); // mssim = average of ssim map
+
+    for (Mat m : new Mat[] {I1, I2, I1_2, I2_2, I1_I2, mu1, mu2, mu1_2, mu2_2, mu1_mu2, sigma1_2, sigma2_2, sigma12,
+        t1, t2, t3, t4, ssim_map}) {
+        m.release();
+    }
+    return mssim;
+}
+
+    /**
+     * Check an MSSIM against getMSSIMOpenCV() of the thumbnails read from the image files and count it
+     * @param filenameA image file
+     * @param filenameB the other image file
+     * @param mssim from the statistics of the thumbnails
+     */
+    static void check(String filenameA, String filenameB, double mssim) {
+    Mat imageA = Imgcodecs.imread(filenameA, Imgcodecs.IMREAD_UNCHANGED);
+    Mat imageB = Imgcodecs.imread(filenameB, Imgcodecs.IMREAD_UNCHANGED);
+    try {
+        if (imageA.empty() || imageB.empty()) {
+            return; // the verification reports it
+        }
+        Mat thumbnailA = thumbnail(imageA);
+        Mat thumbnailB = thumbnail(imageB);
+        // the variances of 16-bit thumbnails are differences of large floats either way
+        double tolerance = thumbnailA.depth() == CvType.CV_8U && thumbnailB.depth() == CvType.CV_8U
+            ? CHECK_TOLERANCE : CHECK_TOLERANCE_16;
+        double difference = Math.abs(getMSSIMOpenCV(thumbnailA, thumbnailB).val[0] - mssim);
+        thumbnailA.release();
+        thumbnailB.release();
+        checked.incrementAndGet();
+        maxDifference.accumulate(difference);
+        if (difference > tolerance) {
+            outOfTolerance.incrementAndGet();
+            System.err.format("\nMSSIM differs from OpenCV by %.1e (tolerance %.0e) %s || %s\n", difference, tolerance,
+                filenameA, filenameB);
+        }
+    } finally {
+        imageA.release();
+        imageB.release();
+    }
+}
+
+    static String report() {
+    return String.format("MSSIM check: %d pairs, %d out of tolerance, max difference from OpenCV %.1e",
+        checked.get(), outOfTolerance.get(), maxDifference.get());
+}
+
+/**
+	 * Converts a color image into shades of grey.
+	 * @param input The image on which to perform the desaturate.
+	 * @param output The image in which to store the output.
+	 */
+	static private void desaturate(Mat input, Mat output) {
+		switch (input.channels()) {
+			case 1:
+				// If the input is already one channel, it's already desaturated
+				input.copyTo(output);
+				break;
+			case 3:
+				Imgproc.cvtColor(input, output, Imgproc.COLOR_BGR2GRAY);
+				break;
+			case 4:
+				Imgproc.cvtColor(input, output, Imgproc.COLOR_BGRA2GRAY);
+				break;
+			default:
+				throw new IllegalArgumentException("Input to desaturate must have 1, 3, or 4 channels");
+		}
+	}
+}
+/////////////////
+// Scalar getMSSIM( const Mat& i1, const Mat& i2)
+// {
+//     const double C1 = 6.5025, C2 = 58.5225;
+//     /***************************** INITS **********************************/
+//     int d     = CV_32F;
+
+//     Mat I1, I2;
+//     i1.convertTo(I1, d);           // cannot calculate on one byte large values
+//     i2.convertTo(I2, d);
+
+//     Mat I2_2   = I2.mul(I2);        // I2^2
+//     Mat I1_2   = I1.mul(I1);        // I1^2
+//     Mat I1_I2  = I1.mul(I2);        // I1 * I2
+
+//     /*************************** END INITS **********************************/
+
+//     Mat mu1, mu2;   // PRELIMINARY COMPUTING
+//     GaussianBlur(I1, mu1, Size(11, 11), 1.5);
+//     GaussianBlur(I2, mu2, Size(11, 11), 1.5);
+
+//     Mat mu1_2   =   mu1.mul(mu1);
+//     Mat mu2_2   =   mu2.mul(mu2);
+//     Mat mu1_mu2 =   mu1.mul(mu2);
+
+//     Mat sigma1_2, sigma2_2, sigma12;
+
+//     GaussianBlur(I1_2, sigma1_2, Size(11, 11), 1.5);
+//     sigma1_2 -= mu1_2;
+
+//     GaussianBlur(I2_2, sigma2_2, Size(11, 11), 1.5);
+//     sigma2_2 -= mu2_2;
+
+//     GaussianBlur(I1_I2, sigma12, Size(11, 11), 1.5);
+//     sigma12 -= mu1_mu2;
+
+//     ///////////////////////////////// FORMULA ////////////////////////////////
+//     Mat t1, t2, t3;
+
+//     t1 = 2 * mu1_mu2 + C1;
+//     t2 = 2 * sigma12 + C2;
+//     t3 = t1.mul(t2);              // t3 = ((2*mu1_mu2 + C1).*(2*sigma12 + C2))
+
+//     t1 = mu1_2 + mu2_2 + C1;
+//     t2 = sigma1_2 + sigma2_2 + C2;
+//     t1 = t1.mul(t2);               // t1 =((mu1_2 + mu2_2 + C1).*(sigma1_2 + sigma2_2 + C2))
+
+//     Mat ssim_map;
+//     divide(t3, t1, ssim_map);      // ssim_map =  t3./t1;
+
+//     Scalar mssim = mean( ssim_map ); // mssim = average of ssim map
+//     return mssim;
+// }
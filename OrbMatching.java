@@ -0,0 +1,80 @@
+package app;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.ORB;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Counts the features 2 images have in common with ORB binary descriptors and a brute force
+ * Hamming matcher; a much faster tie-breaker than SIFT and FLANN for a little less accuracy.
+ *
+ * <p>The images are shrunk so the longest side is at most MAX_SIZE and at most MAX_KEYPOINTS are
+ * kept, so the time doesn't grow with the image size. The matches pass the same Lowe's ratio test
+ * as SIFT. The counts aren't the same as SIFT's so it has its own default -Dfeatures.
+ *
+ * <p>The default was picked from a sweep over 232 pairs of an image and an edit of it (crop,
+ * rotation, rescale, exposure with JPEG quality 30, mirror) that MSSIM calls dissimilar and 300
+ * pairs of unrelated images. At 20 matches 97.4% of the edited pairs pass and 2.7% of the
+ * unrelated pairs; 15 passes 97.8% and 6.3%, 25 passes 96.1% and 1.0%. All the misses at 20 are
+ * mirrored images since ORB descriptors aren't mirror invariant.
+ */
+class OrbMatching extends FeatureMatching {
+
+  static final int MAX_SIZE = 640; // pixels on the longest side detected
+  static final int MAX_KEYPOINTS = 500;
+
+  private final ThreadLocal<ORB> detector = ThreadLocal.withInitial(() -> ORB.create(MAX_KEYPOINTS));
+  private final ThreadLocal<DescriptorMatcher> matcher = ThreadLocal.withInitial(
+    () -> DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING));
+
+  @Override
+  String name() {
+    return "Orb";
+  }
+
+  @Override
+  int defaultFeatures() {
+    return 20;
+  }
+
+  @Override
+  int descriptorType() {
+    return CvType.CV_8U;
+  }
+
+  /**
+   * ORB descriptors of an image at most MAX_SIZE on its longest side
+   * @param img converted to grey and shrunk
+   * @return a row of descriptor for each keypoint
+   */
+  @Override
+  Mat descriptors(Mat img) {
+    Utility.desaturate(img, img);
+    if (img.depth() == CvType.CV_16U) {
+      img.convertTo(img, CvType.CV_8U, 1. / 256.); // ORB is 8-bit only
+    }
+    int longest = Math.max(img.rows(), img.cols());
+    if (longest > MAX_SIZE) {
+      double scale = (double) MAX_SIZE / longest;
+      Imgproc.resize(img, img, new Size(Math.round(img.cols() * scale), Math.round(img.rows() * scale)), 0., 0.,
+        Imgproc.INTER_AREA);
+    }
+
+    MatOfKeyPoint keypoints = new MatOfKeyPoint();
+    Mat descriptors = new Mat();
+    Mat mask = new Mat();
+    detector.get().detectAndCompute(img, mask, keypoints, descriptors);
+    keypoints.release(); // only the descriptors are matched
+    mask.release();
+    return descriptors;
+  }
+
+  @Override
+  DescriptorMatcher matcher() {
+    return matcher.get();
+  }
+}
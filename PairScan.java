@@ -0,0 +1,219 @@
+package app;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Compare every pair of signatures on all cores.
+ *
+ * <p>The upper triangle of the n x n pair matrix is cut into square tiles small enough that the
+ * signatures of a tile's columns stay in the L1 cache while each of its rows is compared to them.
+ * The tiles are split among the fork join workers, which steal from each other as they run out.
+ * Each tile keeps the similar pairs it finds in its own list so nothing is shared while comparing;
+ * the lists are joined afterwards and sorted so the pairs come out in the same order as the
+ * single thread diagonal half loop no matter how many threads ran.
+ */
+class PairScan {
+
+  // bytes of column signatures in a tile, about the size of an L1 data cache
+  static final int TILE_BYTES = 32 * 1024;
+
+  private final SignatureIndex index;
+  private final HammingKernel kernel;
+  private final int maxDifferences;
+  private final int tileSize;
+  private final int rowEnd; // rows compared are before rowEnd
+  private final int columnEnd; // columns compared are before columnEnd
+  private final int[][] tiles; // first row and first column of each tile
+
+  /**
+   * Compare all the pairs of the index
+   * @param index signatures to compare
+   * @param kernel compares a row to the columns of a tile
+   * @param maxDifferences largest similarity to keep
+   * @param tileSize rows and columns in a tile; 0 for the default from TILE_BYTES
+   */
+  PairScan(SignatureIndex index, HammingKernel kernel, int maxDifferences, int tileSize) {
+    this(index, kernel, maxDifferences, tileSize, 0, index.size, 0, index.size);
+  }
+
+  /**
+   * Compare the pairs of a rectangle of the pair matrix, only those above the diagonal
+   * @param index signatures to compare
+   * @param kernel compares a row to the columns of a tile
+   * @param maxDifferences largest similarity to keep
+   * @param tileSize rows and columns in a tile; 0 for the default from TILE_BYTES
+   * @param rowStart first row
+   * @param rowEnd end of the rows
+   * @param columnStart first column
+   * @param columnEnd end of the columns
+   */
+  PairScan(SignatureIndex index, HammingKernel kernel, int maxDifferences, int tileSize, int rowStart, int rowEnd,
+    int columnStart, int columnEnd) {
+    this.index = index;
+    this.kernel = kernel;
+    this.maxDifferences = maxDifferences;
+    this.tileSize = tileSize > 0 ? tileSize : defaultTileSize(index.words);
+    this.rowEnd = rowEnd;
+    this.columnEnd = columnEnd;
+
+    List<int[]> upperTriangle = new ArrayList<int[]>();
+    for (int row = rowStart; row < rowEnd; row += this.tileSize) {
+      for (int column = columnStart; column < columnEnd; column += this.tileSize) {
+        if (Math.min(column + this.tileSize, columnEnd) > row + 1) { // some of the tile is above the diagonal
+          upperTriangle.add(new int[] { row, column });
+        }
+      }
+    }
+    tiles = upperTriangle.toArray(new int[0][]);
+  }
+
+  /**
+   * Tile rows and columns so the Y U V words of a tile's columns fit in TILE_BYTES
+   * @param words 64-bit words in each channel
+   * @return tile size
+   */
+  static int defaultTileSize(int words) {
+    return Math.max(16, TILE_BYTES / (3 * words * Long.BYTES));
+  }
+
+  /**
+   * Compare all the pairs
+   * @param threads fork join parallelism
+   * @return similar pairs packed by pair(), in ascending order of the first row then the second
+   */
+  long[] scan(int threads) {
+    PairList[] found = new PairList[tiles.length]; // similar pairs of each tile
+    scan(threads, (pairs, tile) -> found[tile] = pairs);
+    return join(found);
+  }
+
+  /**
+   * Compare all the pairs, handing the similar pairs of each tile over as soon as it's done so
+   * they needn't all be kept
+   * @param threads fork join parallelism
+   * @param tileDone takes the similar pairs of a tile packed by pair() and the tile's number; called
+   * on the comparing threads
+   */
+  void scan(int threads, ObjIntConsumer<PairList> tileDone) {
+    ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+    try {
+      pool.invoke(new Tiles(0, tiles.length, tileDone));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Join the pairs found by the tasks
+   * @param found pairs of each task
+   * @return all the pairs in ascending order of the first row then the second, the order of
+   * the single thread loop
+   */
+  static long[] join(PairList[] found) {
+    int count = 0;
+    for (PairList pairs : found) {
+      count += pairs.size;
+    }
+    long[] similar = new long[count];
+    count = 0;
+    for (PairList pairs : found) {
+      System.arraycopy(pairs.pairs, 0, similar, count, pairs.size);
+      count += pairs.size;
+    }
+    Arrays.sort(similar);
+    return similar;
+  }
+
+  int tileCount() {
+    return tiles.length;
+  }
+
+  int tileSize() {
+    return tileSize;
+  }
+
+  /**
+   * Pack a pair of rows
+   * @param a smaller row
+   * @param b larger row
+   * @return both rows in a long that sorts by a then b
+   */
+  static long pair(int a, int b) {
+    return (long) a << 32 | b;
+  }
+
+  static int first(long pair) {
+    return (int) (pair >>> 32);
+  }
+
+  static int second(long pair) {
+    return (int) pair;
+  }
+
+  /**
+   * Compare the pairs of one tile
+   * @param tile index of the tile
+   * @return similar pairs of the tile
+   */
+  private PairList compare(int tile) {
+    int rowStart = tiles[tile][0];
+    int tileRowEnd = Math.min(rowStart + tileSize, rowEnd);
+    int columnStart = tiles[tile][1];
+    int tileColumnEnd = Math.min(columnStart + tileSize, columnEnd);
+    PairList pairs = new PairList();
+
+    for (int a = rowStart; a < tileRowEnd; a++) {
+      // on the diagonal only the half above it
+      kernel.compare(index, a, Math.max(columnStart, a + 1), tileColumnEnd, maxDifferences, pairs);
+    }
+    return pairs;
+  }
+
+  /**
+   * A range of tiles, split in half until it's one tile
+   */
+  private class Tiles extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int start;
+    private final int end;
+    private final ObjIntConsumer<PairList> tileDone;
+
+    Tiles(int start, int end, ObjIntConsumer<PairList> tileDone) {
+      this.start = start;
+      this.end = end;
+      this.tileDone = tileDone;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= 1) {
+        if (end > start) {
+          tileDone.accept(compare(start), start);
+        }
+        return;
+      }
+      int middle = (start + end) >>> 1;
+      invokeAll(new Tiles(start, middle, tileDone), new Tiles(middle, end, tileDone));
+    }
+  }
+
+  /**
+   * Growable list of packed pairs
+   */
+  static class PairList {
+    long[] pairs = new long[16];
+    int size;
+
+    void add(long pair) {
+      if (size == pairs.length) {
+        pairs = Arrays.copyOf(pairs, size * 2);
+      }
+      pairs[size++] = pair;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package app;
+
+import org.opencv.core.Mat;
+
+/**
+ * The image of a -Dquery, kept from the decode that made its signature for the verification of
+ * all its hits.
+ *
+ * <p>A query image isn't in the index so it has no id for the thumbnail and descriptor caches to
+ * keep it by, and it was read again for every hit. Its MSSIM statistics are computed once from
+ * the decode, and its descriptors the first time a hit needs the features check. They're kept
+ * until the hits are verified, then the decode is released.
+ */
+class QueryImage {
+
+  private Mat image; // full resolution; null until decoded
+  private MSSIM.Statistics statistics;
+  private byte[] descriptors; // DescriptorCache.toBytes() of the features; null until a hit needs them
+
+  /**
+   * Take the full resolution decode of the query image
+   * @param image owned by this until release()
+   */
+  synchronized void decoded(Mat image) {
+    this.image = image;
+    Mat thumbnail = MSSIM.thumbnail(image);
+    try {
+      statistics = new MSSIM.Statistics(thumbnail);
+    } finally {
+      thumbnail.release();
+    }
+  }
+
+  /**
+   * @return statistics of the query image's thumbnail, not to be changed
+   */
+  synchronized MSSIM.Statistics statistics() {
+    return statistics;
+  }
+
+  /**
+   * The descriptors of the query image, computed the first time
+   * @param features computes the descriptors
+   * @return descriptors, to be released by the caller
+   */
+  synchronized Mat descriptors(FeatureMatching features) {
+    if (descriptors == null) {
+      Mat computed = features.descriptors(image);
+      descriptors = DescriptorCache.toBytes(computed);
+      return computed;
+    }
+    return DescriptorCache.fromBytes(descriptors, features.descriptorType());
+  }
+
+  synchronized void release() {
+    if (image != null) {
+      image.release();
+      image = null;
+    }
+  }
+}
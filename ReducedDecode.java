@@ -0,0 +1,128 @@
+package app;
+
+// Reduced resolution decoding of JPEG files for the signature
+
+// The signature pipeline immediately resizes the image to 160x160 so decoding a large
+// camera file at full resolution is mostly wasted. The JPEG decoder can scale by 1/2, 1/4
+// or 1/8 as it decodes (IMREAD_REDUCED_*) for a fraction of the time and memory.
+// The largest reduction is chosen from the image header dimensions that still leaves
+// the image at least 160x160.
+
+// The reduced image isn't exactly the full image resized so the signature may differ
+// by a few bits.  The check mode decodes both ways and compares the signatures against
+// the tolerance.
+
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+public class ReducedDecode {
+
+    // smallest image dimension needed by the signature pipeline (its first resize)
+    static final int MIN_SIZE = 160;
+
+    // stated maximum Hamming distance (bits) in any one channel between the reduced decode
+    // signature and the full decode signature for the 64 bit signature; scaled for larger signatures
+    static final int TOLERANCE = 4;
+
+    // reduced decode check statistics
+    static final AtomicInteger checked = new AtomicInteger();
+    static final AtomicInteger outOfTolerance = new AtomicInteger();
+    static final AtomicInteger maxDifference = new AtomicInteger();
+
+    /**
+     * Choose the imread flag for the signature of an image.
+     * @param filename image file
+     * @return IMREAD_REDUCED_COLOR_8, 4 or 2 if a JPEG is large enough otherwise IMREAD_UNCHANGED
+     */
+    static int imreadFlag(String filename) {
+        String name = filename.toLowerCase();
+        // other formats are decoded full size then resized by OpenCV so there is no saving
+        if (!name.endsWith(".jpg") && !name.endsWith(".jpeg")) {
+            return Imgcodecs.IMREAD_UNCHANGED;
+        }
+
+        int[] dimensions = dimensions(filename);
+        if (dimensions == null) {
+            return Imgcodecs.IMREAD_UNCHANGED;
+        }
+        int smallest = Math.min(dimensions[0], dimensions[1]);
+
+        // IMREAD_UNCHANGED ignores the EXIF orientation so the reduced decode has to also
+        int flag;
+        if (smallest / 8 >= MIN_SIZE) {
+            flag = Imgcodecs.IMREAD_REDUCED_COLOR_8;
+        }
+        else if (smallest / 4 >= MIN_SIZE) {
+            flag = Imgcodecs.IMREAD_REDUCED_COLOR_4;
+        }
+        else if (smallest / 2 >= MIN_SIZE) {
+            flag = Imgcodecs.IMREAD_REDUCED_COLOR_2;
+        }
+        else {
+            return Imgcodecs.IMREAD_UNCHANGED;
+        }
+        return flag | Imgcodecs.IMREAD_IGNORE_ORIENTATION;
+    }
+
+    /**
+     * Read the image width and height from the file header without decoding the image
+     * @param filename image file
+     * @return width and height or null if the header can't be read
+     */
+    static int[] dimensions(String filename) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new File(filename))) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        } catch (Exception e) {
+            return null; // let imread decide what's wrong with the file
+        }
+    }
+
+    /**
+     * Compare the reduced decode signature to the full decode signature and count it
+     * @param filename image file for the report
+     * @param reduced signature from the reduced decode
+     * @param full signature from the full decode
+     */
+    static void check(String filename, long[][] reduced, long[][] full) {
+        int worst = 0;
+        for (int channel = 0; channel < reduced.length; channel++) {
+            worst = Math.max(worst, Hamming.distance(reduced[channel], full[channel]));
+        }
+        checked.incrementAndGet();
+        maxDifference.accumulateAndGet(worst, Math::max);
+        if (worst > tolerance()) {
+            outOfTolerance.incrementAndGet();
+            System.err.format("\nReduced decode signature differs by %d bits (tolerance %d) %s\n", worst, tolerance(),
+                filename);
+        }
+    }
+
+    static String report() {
+        return String.format("Reduced decode check: %d images, %d out of tolerance %d bits, max difference %d bits",
+            checked.get(), outOfTolerance.get(), tolerance(), maxDifference.get());
+    }
+
+    static int tolerance() {
+        return Math.max(TOLERANCE, TOLERANCE * GripPipelineSimilar.signatureBits() / 64);
+    }
+}
@@ -0,0 +1,365 @@
+package app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hands the comparison of all pairs of signatures out to worker processes.
+ *
+ * <p>The signatures are cut into blocks of shardSize and the upper triangle of block pairs
+ * (a block with itself and with every later block) are the shards. Each worker connects, gets the
+ * comparison parameters, then is sent a shard at a time: the ids, filenames and signatures of its
+ * 2 blocks. The worker compares the pairs, verifies the similar ones with MSSIM and SIFT (so the
+ * workers need the image files at the same paths) and sends back the verified pairs.
+ *
+ * <p>If a worker's connection breaks its shard goes back on the front of the queue for another
+ * worker, up to MAX_ATTEMPTS times. A shard that fails that often is reported and taken as done
+ * with no pairs so the rest can finish, then run() fails so the watermark isn't advanced and the
+ * shard is compared again next run. A worker sends a heartbeat every HEARTBEAT_SECONDS while it
+ * works so a worker whose machine died or was cut off, which never closes its connection, is given
+ * up after TIMEOUT_SECONDS without a word however long its shard takes. A shard's results are only
+ * taken once and are recorded in shard order so the results are the same however the shards were
+ * spread over the workers.
+ *
+ * <p>-DlocalWorkers starts worker JVMs on this machine with the same classpath and options. If
+ * they have all exited and no other worker is connected run() fails instead of waiting for one.
+ */
+class ShardCoordinator {
+
+  static final int DEFAULT_PORT = 5705;
+  static final int END_OF_SHARDS = -1;
+  static final int HEARTBEAT = -2; // sent by a worker instead of a shard's results while it works
+  static final int HEARTBEAT_SECONDS = 10;
+  static final int TIMEOUT_SECONDS = 60;
+  static final int MAX_ATTEMPTS = 3; // workers lost running a shard before it's given up
+
+  private final int port;
+  private final int shardSize;
+  private final SignatureIndex index;
+  private final String[] filenames; // of each row of the index
+  private final int firstNew; // rows before it have been compared with each other
+  private final List<int[]> shards = new ArrayList<int[]>(); // first row of each block of the shard
+  private final LinkedBlockingDeque<Integer> pending = new LinkedBlockingDeque<Integer>(); // shards not sent or lost
+  private final BitSet completed = new BitSet();
+  private final Map<Integer, List<SimilarPair>> waiting = new HashMap<Integer, List<SimilarPair>>(); // out of order
+  private int nextShard; // next shard to record
+  private final int[] attempts; // of each shard that lost its worker
+  private final List<Integer> failed = new ArrayList<Integer>(); // shards given up
+  private int connected; // workers being served
+  private final Consumer<SimilarPair> record;
+
+  /**
+   * Load the signatures and filenames and make the shards
+   * @param conn DB of signatures
+   * @param port listening for workers
+   * @param shardSize signatures in a block
+   * @param comparedId signatures with ids up to it have been compared with each other
+   * @param record writes the result of a verified pair
+   * @throws SQLException
+   */
+  ShardCoordinator(Connection conn, int port, int shardSize, int comparedId, Consumer<SimilarPair> record)
+      throws SQLException {
+    this.port = port;
+    this.shardSize = Math.max(1, shardSize);
+    this.record = record;
+    index = SignatureIndex.load(conn);
+    filenames = new String[index.size];
+    try (Statement statement = conn.createStatement();
+        ResultSet rs = statement.executeQuery("select filename from Signature order by id")) {
+      for (int row = 0; row < index.size && rs.next(); row++) {
+        filenames[row] = rs.getString(1);
+      }
+    }
+
+    int newRow = 0;
+    while (newRow < index.size && index.ids[newRow] <= comparedId) {
+      newRow++;
+    }
+    firstNew = newRow;
+
+    // only the block pairs with a new signature in the later block
+    for (int blockA = 0; blockA < index.size; blockA += this.shardSize) {
+      for (int blockB = blockA; blockB < index.size; blockB += this.shardSize) {
+        if (Math.min(blockB + this.shardSize, index.size) > firstNew) {
+          pending.add(shards.size());
+          shards.add(new int[] { blockA, blockB });
+        }
+      }
+    }
+    attempts = new int[shards.size()];
+  }
+
+  int shards() {
+    return shards.size();
+  }
+
+  int signatures() {
+    return index.size;
+  }
+
+  int firstNew() {
+    return firstNew;
+  }
+
+  /**
+   * Serve the shards to the workers until all are done
+   * @param localWorkers worker JVMs to start on this machine
+   * @throws IOException if a shard failed MAX_ATTEMPTS times or the local workers all exited
+   * with no other worker connected
+   * @throws InterruptedException
+   */
+  void run(int localWorkers) throws IOException, InterruptedException {
+    if (shards.isEmpty()) {
+      return;
+    }
+    List<Process> processes = new ArrayList<Process>();
+    try (ServerSocket server = new ServerSocket(port)) {
+      System.out.println("Coordinator listening for workers on port " + server.getLocalPort() + " [-Dworker=<host>:"
+        + server.getLocalPort() + "]");
+      for (int worker = 0; worker < localWorkers; worker++) {
+        processes.add(startLocalWorker(worker, server.getLocalPort(), localWorkers));
+      }
+
+      Thread acceptor = new Thread(() -> {
+        try {
+          while (true) {
+            Socket socket = server.accept();
+            Thread handler = new Thread(() -> serve(socket), "shard worker " + socket.getRemoteSocketAddress());
+            handler.setDaemon(true);
+            handler.start();
+          }
+        } catch (IOException e) {
+          // server closed when all the shards are done
+        }
+      }, "shard acceptor");
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      synchronized (this) {
+        while (completed.cardinality() < shards.size()) {
+          if (localWorkers > 0 && connected == 0 && processes.stream().noneMatch(Process::isAlive)) {
+            throw new IOException("All " + localWorkers + " local workers exited and no worker is connected; "
+              + (shards.size() - completed.cardinality()) + " shards not done [see worker0.log]");
+          }
+          wait(1000); // a lost process doesn't notify
+        }
+        // the connected workers are sent END_OF_SHARDS when they next ask for a shard
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (connected > 0 && System.nanoTime() < end) {
+          wait(100);
+        }
+        if (!failed.isEmpty()) {
+          throw new IOException("Shards " + failed + " failed on " + MAX_ATTEMPTS
+            + " workers; their pairs are compared again next run");
+        }
+      }
+    } finally {
+      for (Process process : processes) {
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+          process.destroy();
+        }
+      }
+    }
+  }
+
+  /**
+   * Start a worker JVM on this machine with the classpath and options of this one
+   * @param worker number of the worker for its log file
+   * @param port of the coordinator
+   * @param localWorkers number of local workers sharing the cores
+   * @return worker process
+   * @throws IOException
+   */
+  private static Process startLocalWorker(int worker, int port, int localWorkers) throws IOException {
+    List<String> command = new ArrayList<String>();
+    command.add(ProcessHandle.current().info().command().orElse("java"));
+    for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (!argument.startsWith("-Dcoordinator") && !argument.startsWith("-DlocalWorkers")
+          && !argument.startsWith("-DverifyThreads")) {
+        command.add(argument);
+      }
+    }
+    command.add("-DverifyThreads=" + Math.max(1, Runtime.getRuntime().availableProcessors() / localWorkers));
+    command.add("-Dworker=localhost:" + port);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(App.class.getName());
+    ProcessBuilder builder = new ProcessBuilder(command);
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(ProcessBuilder.Redirect.to(new File("worker" + worker + ".log")));
+    return builder.start();
+  }
+
+  /**
+   * Send shards to a worker and take its results until the shards are done or the worker is lost
+   * @param socket connection to the worker
+   */
+  private void serve(Socket socket) {
+    synchronized (this) {
+      connected++;
+    }
+    Integer shard = null;
+    try (Socket connection = socket;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()))) {
+      connection.setSoTimeout(TIMEOUT_SECONDS * 1000); // no heartbeat so the worker is lost
+
+      // comparison parameters
+      out.writeInt(GripPipelineSimilar.signatureSize);
+      out.writeInt(App.maxDifferences);
+      out.writeBoolean(App.doMSSIM);
+      out.writeDouble(App.maxDifferencesMSSIM);
+      out.writeInt(App.features);
+      out.writeUTF(App.matchFeatures.name());
+
+      while ((shard = nextShard()) != null) {
+        sendShard(out, shard);
+        out.flush();
+        List<SimilarPair> pairs = ShardWorker.readResults(in, shard);
+        completed(shard, pairs);
+        shard = null;
+      }
+      out.writeInt(END_OF_SHARDS);
+      out.flush();
+    } catch (IOException e) {
+      if (shard != null) {
+        lost(shard, socket, e);
+      }
+    } catch (InterruptedException e) {
+      System.err.println("shard worker interrupted " + e);
+    } finally {
+      synchronized (this) {
+        connected--;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Reassign the shard of a lost worker or give it up once it's been tried MAX_ATTEMPTS times
+   * @param shard
+   * @param socket connection to the worker
+   * @param e why it was lost
+   */
+  private synchronized void lost(int shard, Socket socket, IOException e) {
+    if (completed.get(shard)) {
+      return; // another worker finished it
+    }
+    if (++attempts[shard] < MAX_ATTEMPTS) {
+      System.err.println("\nWorker " + socket.getRemoteSocketAddress() + " lost, shard " + shard + " reassigned " + e);
+      pending.addFirst(shard);
+    }
+    else {
+      System.err.println("\nWorker " + socket.getRemoteSocketAddress() + " lost, shard " + shard + " failed on "
+        + MAX_ATTEMPTS + " workers " + e);
+      failed.add(shard);
+      completed(shard, Collections.<SimilarPair>emptyList()); // so the shards after it are recorded
+    }
+  }
+
+  /**
+   * @return next shard to send or null when all are done
+   * @throws InterruptedException
+   */
+  private Integer nextShard() throws InterruptedException {
+    while (true) {
+      Integer shard = pending.poll(1, TimeUnit.SECONDS);
+      if (shard != null) {
+        synchronized (this) {
+          if (!completed.get(shard)) {
+            return shard;
+          }
+        }
+      }
+      else {
+        synchronized (this) {
+          if (completed.cardinality() == shards.size()) {
+            return null;
+          }
+        }
+        // others are running the last shards; wait in case a worker is lost
+      }
+    }
+  }
+
+  /**
+   * Send a shard: the ids, filenames and signatures of its blocks and the first new column
+   * @param out
+   * @param shard
+   * @throws IOException
+   */
+  private void sendShard(DataOutputStream out, int shard) throws IOException {
+    int blockA = shards.get(shard)[0];
+    int blockB = shards.get(shard)[1];
+    out.writeInt(shard);
+    writeBlock(out, blockA);
+    out.writeBoolean(blockA == blockB);
+    if (blockA != blockB) {
+      writeBlock(out, blockB);
+    }
+    out.writeInt(Math.max(0, firstNew - blockB)); // first column of block B to compare
+  }
+
+  private void writeBlock(DataOutputStream out, int block) throws IOException {
+    int rows = Math.min(shardSize, index.size - block);
+    out.writeInt(rows);
+    for (int row = block; row < block + rows; row++) {
+      out.writeInt(index.ids[row]);
+      out.writeUTF(filenames[row]);
+      for (int word = 0; word < index.hash.length; word++) {
+        out.writeLong(index.hash[word][row]);
+      }
+    }
+  }
+
+  /**
+   * Take the results of a shard unless another worker already did and record the shards done
+   * in order
+   * @param shard
+   * @param pairs verified pairs of the shard
+   */
+  private synchronized void completed(int shard, List<SimilarPair> pairs) {
+    if (completed.get(shard)) {
+      return; // duplicate
+    }
+    completed.set(shard);
+    waiting.put(shard, pairs);
+    while (waiting.containsKey(nextShard)) {
+      for (SimilarPair pair : waiting.remove(nextShard)) {
+        record.accept(pair);
+      }
+      nextShard++;
+    }
+    System.out.print("\rShards done " + completed.cardinality() + " of " + shards.size());
+    notifyAll();
+  }
+
+  /**
+   * Parse -Dcoordinator
+   * @param property port or empty for the default
+   * @return port
+   */
+  static int port(String property) {
+    return property == null || property.isEmpty() ? DEFAULT_PORT : Integer.parseInt(property);
+  }
+}
@@ -0,0 +1,247 @@
+package app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares and verifies the shards of a ShardCoordinator.
+ *
+ * <p>The worker connects to the coordinator, takes its comparison parameters, then for each shard
+ * it's sent puts the signatures of the shard's 2 blocks in a SignatureIndex, compares the pairs
+ * with a new signature with PairScan and verifies the similar ones on verifyThreads. All the
+ * verified pairs, similar or not, are sent back so the coordinator can keep them for later runs.
+ * A heartbeat is sent every ShardCoordinator.HEARTBEAT_SECONDS so the coordinator knows it's still
+ * working. It stops when the coordinator sends END_OF_SHARDS or the connection is lost.
+ */
+class ShardWorker {
+
+  private final HammingKernel kernel;
+  private final int tileSize;
+  private final int compareThreads;
+  private final int verifyThreads;
+
+  /**
+   * @param kernel compares signatures
+   * @param tileSize rows and columns in a tile; 0 for the default
+   * @param compareThreads fork join parallelism of a shard's comparison
+   * @param verifyThreads threads verifying a shard's similar pairs
+   */
+  ShardWorker(HammingKernel kernel, int tileSize, int compareThreads, int verifyThreads) {
+    this.kernel = kernel;
+    this.tileSize = tileSize;
+    this.compareThreads = compareThreads;
+    this.verifyThreads = verifyThreads;
+  }
+
+  /**
+   * Run shards for a coordinator until it has no more
+   * @param coordinator host:port
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  void run(String coordinator) throws IOException, InterruptedException {
+    int colon = coordinator.lastIndexOf(':');
+    String host = colon < 0 ? coordinator : coordinator.substring(0, colon);
+    int port = colon < 0 ? ShardCoordinator.DEFAULT_PORT : Integer.parseInt(coordinator.substring(colon + 1));
+
+    try (Socket socket = new Socket(host, port);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+      socket.setKeepAlive(true); // so a lost coordinator is noticed while waiting for a shard
+      Thread heartbeat = heartbeat(socket, out);
+
+      // the coordinator's comparison parameters
+      GripPipelineSimilar.signatureSize = in.readInt();
+      App.maxDifferences = in.readInt();
+      App.doMSSIM = in.readBoolean();
+      App.maxDifferencesMSSIM = in.readDouble();
+      App.features = in.readInt();
+      String matcher = in.readUTF();
+      if (!matcher.equals(App.matchFeatures.name())) {
+        App.matchFeatures = FeatureMatching.create(matcher);
+        App.descriptors = new DescriptorCache(App.matchFeatures, App.descriptorCache);
+      }
+      System.out.println("Worker of " + host + ":" + port + " signature of " + GripPipelineSimilar.signatureBits()
+        + " bits, max differences " + App.maxDifferences + (App.doMSSIM ? ", MSSIM " + App.maxDifferencesMSSIM : "")
+        + ", features " + App.features + " " + App.matchFeatures.name());
+
+      int words = Hamming.words(GripPipelineSimilar.signatureBits());
+      int shard;
+      while ((shard = in.readInt()) != ShardCoordinator.END_OF_SHARDS) {
+        long startTime = System.nanoTime();
+        // block A in the first rows, block B after it unless the shard is a block with itself
+        List<String> filenames = new ArrayList<String>();
+        int rowsA = in.readInt();
+        long[][] blockA = readBlock(in, rowsA, words, filenames);
+        boolean same = in.readBoolean();
+        int rowsB = same ? 0 : in.readInt();
+        long[][] blockB = same ? null : readBlock(in, rowsB, words, filenames);
+        int newFrom = in.readInt();
+
+        SignatureIndex index = new SignatureIndex(rowsA + rowsB, words);
+        fill(index, blockA, 0);
+        int columnStart = newFrom;
+        if (!same) {
+          fill(index, blockB, rowsA);
+          columnStart += rowsA;
+        }
+        long[] similarPairs = new PairScan(index, kernel, App.maxDifferences, tileSize, 0, rowsA, columnStart,
+          index.size).scan(compareThreads);
+
+        List<SimilarPair> verified = Collections.synchronizedList(new ArrayList<SimilarPair>());
+        VerifyPipeline pipeline = new VerifyPipeline(verifyThreads, verifyThreads * 4, App.x::verify, verified::add);
+        List<SimilarPair> candidates = new ArrayList<SimilarPair>();
+        for (long pair : similarPairs) {
+          int a = PairScan.first(pair);
+          int b = PairScan.second(pair);
+          candidates.add(new SimilarPair(index.ids[a], filenames.get(a), index.ids[b], filenames.get(b),
+            index.similarity(a, b)));
+        }
+        if (App.verifyByPath) {
+          VerifySchedule.byPath(candidates);
+        }
+        for (SimilarPair candidate : candidates) {
+          pipeline.put(candidate);
+        }
+        pipeline.close();
+
+        synchronized (out) {
+          writeResults(out, shard, verified);
+          out.flush();
+        }
+        System.out.format("Shard %d of %d x %d signatures, %d similar pairs in %d ms\n", shard, rowsA,
+          same ? rowsA : rowsB, similarPairs.length, (System.nanoTime() - startTime) / 1000000);
+      }
+      heartbeat.interrupt();
+      if (App.doMSSIM) {
+        System.out.println(App.thumbnails.report());
+        System.out.println(App.descriptors.report());
+      }
+      if (App.mssimCheck) {
+        System.out.println(MSSIM.report());
+      }
+    }
+  }
+
+  /**
+   * Start sending heartbeats to the coordinator. If one can't be sent the coordinator is gone so
+   * the connection is closed, which stops the worker.
+   * @param socket connection to the coordinator
+   * @param out its output
+   * @return heartbeat thread
+   */
+  private static Thread heartbeat(Socket socket, DataOutputStream out) {
+    Thread heartbeat = new Thread(() -> {
+      try {
+        while (true) {
+          Thread.sleep(ShardCoordinator.HEARTBEAT_SECONDS * 1000L);
+          synchronized (out) {
+            out.writeInt(ShardCoordinator.HEARTBEAT);
+            out.flush();
+          }
+        }
+      } catch (InterruptedException e) {
+        // done
+      } catch (IOException e) {
+        System.err.println("Coordinator lost " + e);
+        try {
+          socket.close();
+        } catch (IOException e1) {
+          // closing anyway
+        }
+      }
+    }, "heartbeat");
+    heartbeat.setDaemon(true);
+    heartbeat.start();
+    return heartbeat;
+  }
+
+  /**
+   * Read the ids, filenames and signatures of a block
+   * @param in
+   * @param rows signatures in the block
+   * @param words 64-bit words in each channel
+   * @param filenames the filenames are added to it
+   * @return [0] the ids, then the Y U V words of each signature
+   * @throws IOException
+   */
+  private static long[][] readBlock(DataInputStream in, int rows, int words, List<String> filenames)
+      throws IOException {
+    long[][] block = new long[rows][1 + 3 * words];
+    for (int row = 0; row < rows; row++) {
+      block[row][0] = in.readInt();
+      filenames.add(in.readUTF());
+      for (int word = 1; word <= 3 * words; word++) {
+        block[row][word] = in.readLong();
+      }
+    }
+    return block;
+  }
+
+  private static void fill(SignatureIndex index, long[][] block, int firstRow) {
+    for (int row = 0; row < block.length; row++) {
+      index.ids[firstRow + row] = (int) block[row][0];
+      for (int word = 0; word < index.hash.length; word++) {
+        index.hash[word][firstRow + row] = block[row][word + 1];
+      }
+    }
+  }
+
+  /**
+   * Send the verified pairs of a shard in the order they were found
+   * @param out
+   * @param shard
+   * @param pairs
+   * @throws IOException
+   */
+  static void writeResults(DataOutputStream out, int shard, List<SimilarPair> pairs) throws IOException {
+    out.writeInt(shard);
+    out.writeInt(pairs.size());
+    for (SimilarPair pair : pairs) {
+      out.writeInt(pair.idA);
+      out.writeUTF(pair.filenameA);
+      out.writeInt(pair.idB);
+      out.writeUTF(pair.filenameB);
+      out.writeInt(pair.similarity);
+      out.writeDouble(pair.mssim);
+      out.writeInt(pair.features);
+      out.writeBoolean(pair.similar);
+      out.writeBoolean(pair.failed);
+    }
+  }
+
+  /**
+   * Read the verified pairs of a shard, skipping the heartbeats sent while the worker worked on it
+   * @param in
+   * @param shard the shard expected
+   * @return pairs
+   * @throws IOException
+   */
+  static List<SimilarPair> readResults(DataInputStream in, int shard) throws IOException {
+    int resultShard;
+    while ((resultShard = in.readInt()) == ShardCoordinator.HEARTBEAT) {
+      // still working on it
+    }
+    if (resultShard != shard) {
+      throw new IOException("results of shard " + resultShard + " instead of " + shard);
+    }
+    int count = in.readInt();
+    List<SimilarPair> pairs = new ArrayList<SimilarPair>(count);
+    for (int i = 0; i < count; i++) {
+      SimilarPair pair = new SimilarPair(in.readInt(), in.readUTF(), in.readInt(), in.readUTF(), in.readInt());
+      pair.mssim = in.readDouble();
+      pair.features = in.readInt();
+      pair.similar = in.readBoolean();
+      pair.failed = in.readBoolean();
+      pairs.add(pair);
+    }
+    return pairs;
+  }
+}
@@ -0,0 +1,94 @@
+package app;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * All the image signatures in memory for comparing every pair.
+ *
+ * <p>Struct of arrays: the ids in one int array and each signature word of each channel in its
+ * own long array indexed by row, so the all pairs loop is over contiguous primitives instead of
+ * JDBC rows. The filenames stay in the DB and are only fetched for the similar pairs.
+ */
+class SignatureIndex {
+
+  final int size; // number of signatures
+  final int words; // 64-bit words in each channel
+  final int[] ids; // DB primary key of each row, ascending
+  final long[][] hash; // [channel * words + word][row]
+
+  SignatureIndex(int size, int words) {
+    this.size = size;
+    this.words = words;
+    ids = new int[size];
+    hash = new long[3 * words][size];
+  }
+
+  /**
+   * Load the signatures from the DB
+   * @param conn
+   * @return signatures in id order
+   * @throws SQLException
+   */
+  static SignatureIndex load(Connection conn) throws SQLException {
+    return load(conn, 0);
+  }
+
+  /**
+   * Load the signatures from the DB with room for more
+   * @param conn
+   * @param spareRows rows after the signatures for the caller
+   * @return signatures in id order then the spare rows
+   * @throws SQLException
+   */
+  static SignatureIndex load(Connection conn, int spareRows) throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      int size;
+      try (ResultSet rs = statement.executeQuery("select count(*) from Signature")) {
+        rs.next();
+        size = rs.getInt(1);
+      }
+
+      SignatureIndex index = new SignatureIndex(size + spareRows, Hamming.words(GripPipelineSimilar.signatureBits()));
+      try (ResultSet rs = statement.executeQuery(
+          "select id, signature1, signature2, signature3 from Signature order by id")) {
+        for (int row = 0; row < size && rs.next(); row++) {
+          index.set(row, rs.getInt(1), new long[][] { Hamming.fromBytes(rs.getBytes(2)),
+            Hamming.fromBytes(rs.getBytes(3)), Hamming.fromBytes(rs.getBytes(4)) });
+        }
+      }
+      return index;
+    }
+  }
+
+  void set(int row, int id, long[][] signature) {
+    ids[row] = id;
+    for (int channel = 0; channel < 3; channel++) {
+      for (int word = 0; word < words; word++) {
+        hash[channel * words + word][row] = signature[channel][word];
+      }
+    }
+  }
+
+  /**
+   * Hamming distance of the Y plane plus one fourth of the U and V planes, the same as
+   * Hamming.similarity
+   * @param a row
+   * @param b row
+   * @return weighted distance; lower count means more similar
+   */
+  int similarity(int a, int b) {
+    int y = 0;
+    int uv = 0;
+    for (int word = 0; word < words; word++) {
+      long[] yWord = hash[word];
+      long[] uWord = hash[words + word];
+      long[] vWord = hash[2 * words + word];
+      y += Long.bitCount(yWord[a] ^ yWord[b]);
+      uv += Long.bitCount(uWord[a] ^ uWord[b]) + Long.bitCount(vWord[a] ^ vWord[b]);
+    }
+    return y + uv / 4;
+  }
+}
@@ -0,0 +1,189 @@
+package app;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Puts image signatures into the DB or remembers why there isn't one.
+ *
+ * <p>Any number of threads put signatures on a bounded queue and one writer thread inserts
+ * them with prepared statements, batchSize rows to a transaction. The writer has its own
+ * connection so the transactions don't mix with the other uses of the DB.
+ */
+class SignatureWriter {
+
+  private static final ImageSignature END_OF_INGEST =
+    new ImageSignature(new ImageSignature.IndexedFile(0, null, 0, 0, ImageSignature.NOT_INDEXED), "end of ingest");
+
+  private final int batchSize;
+  private final BlockingQueue<ImageSignature> queue; // signatures waiting for the writer
+  private final Thread writer;
+
+  private final Connection conn;
+  private final PreparedStatement deleteSignature; // older version of a file
+  private final PreparedStatement deleteUnreadable;
+  private final PreparedStatement insertSignature;
+  private final PreparedStatement mergeUnreadable; // don't try again until the file changes
+  private final PreparedStatement mergeNextId; // ids handed out so far are never used again
+  private final List<ImageSignature> batch = new ArrayList<ImageSignature>(); // in the current transaction
+
+  /**
+   * Start the writer thread
+   * @param batchSize signatures in each transaction
+   * @param capacity signatures that can be waiting before producers block
+   * @throws SQLException
+   */
+  SignatureWriter(int batchSize, int capacity) throws SQLException {
+    this.batchSize = Math.max(1, batchSize);
+    queue = new ArrayBlockingQueue<ImageSignature>(Math.max(capacity, this.batchSize));
+
+    conn = DriverManager.getConnection("jdbc:h2:./signature");
+    conn.setAutoCommit(false);
+    deleteSignature = conn.prepareStatement("delete from Signature where id = ?");
+    deleteUnreadable = conn.prepareStatement("delete from Unreadable where filename = ?");
+    insertSignature = conn.prepareStatement("insert into Signature values(?, ?, ?, ?, ?, ?, ?)");
+    mergeUnreadable = conn.prepareStatement("merge into Unreadable key(filename) values(?, ?, ?)");
+    mergeNextId = conn.prepareStatement("merge into Settings key(name) values('nextId', ?)");
+
+    writer = new Thread(() -> {
+      try {
+        ImageSignature signature;
+        while ((signature = queue.take()) != END_OF_INGEST) {
+          add(signature);
+          if (batch.size() >= this.batchSize) {
+            flush();
+          }
+        }
+        flush();
+      } catch (InterruptedException e) {
+        System.err.println("signature writer interrupted " + e);
+      }
+    }, "signature writer");
+    writer.start();
+  }
+
+  /**
+   * Queue a signature for the DB. Blocks while the writer is behind.
+   * @param signature
+   * @throws InterruptedException
+   */
+  void put(ImageSignature signature) throws InterruptedException {
+    queue.put(signature);
+  }
+
+  /**
+   * Write everything queued and close the connection
+   * @throws InterruptedException
+   * @throws SQLException
+   */
+  void close() throws InterruptedException, SQLException {
+    queue.put(END_OF_INGEST);
+    writer.join();
+    conn.close();
+  }
+
+  private void add(ImageSignature signature) {
+    if (signature.failed()) {
+      System.err.format("\n\n\nCannot process image %d: %s  %s\n\n\n", signature.id, signature.filename,
+        signature.error);
+    }
+    batch.add(signature);
+  }
+
+  /**
+   * Write the batch in one transaction. If that fails write the rows one at a time so only the
+   * bad ones are lost.
+   */
+  private void flush() {
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      for (ImageSignature signature : batch) {
+        addBatch(signature);
+      }
+      // deletes of older versions first since they may share the filename
+      deleteSignature.executeBatch();
+      deleteUnreadable.executeBatch();
+      insertSignature.executeBatch();
+      mergeUnreadable.executeBatch();
+      putNextId();
+      conn.commit();
+    } catch (SQLException e) {
+      rollback();
+      for (ImageSignature signature : batch) {
+        try {
+          addBatch(signature);
+          deleteSignature.executeBatch();
+          deleteUnreadable.executeBatch();
+          insertSignature.executeBatch();
+          mergeUnreadable.executeBatch();
+          putNextId();
+          conn.commit();
+        } catch (SQLException e1) {
+          rollback();
+          System.err.format("\n\n\nException thrown - Cannot process image %d:  %s  %s   \n\n\n", signature.id,
+            signature.filename, e1.toString());
+        }
+      }
+    }
+    batch.clear();
+  }
+
+  private void addBatch(ImageSignature signature) throws SQLException {
+    if (signature.replaces > 0) {
+      deleteSignature.setInt(1, signature.replaces);
+      deleteSignature.addBatch();
+    }
+
+    if (signature.failed()) {
+      mergeUnreadable.setString(1, signature.filename);
+      mergeUnreadable.setLong(2, signature.size);
+      mergeUnreadable.setLong(3, signature.modified);
+      mergeUnreadable.addBatch();
+      return;
+    }
+
+    if (signature.replaces == 0) {
+      deleteUnreadable.setString(1, signature.filename);
+      deleteUnreadable.addBatch();
+    }
+
+    insertSignature.setInt(1, signature.id);
+    insertSignature.setBytes(2, Hamming.toBytes(signature.hash[0]));
+    insertSignature.setBytes(3, Hamming.toBytes(signature.hash[1]));
+    insertSignature.setBytes(4, Hamming.toBytes(signature.hash[2]));
+    insertSignature.setString(5, signature.filename);
+    insertSignature.setLong(6, signature.size);
+    insertSignature.setLong(7, signature.modified);
+    insertSignature.addBatch();
+  }
+
+  /**
+   * Keep the next id with the rows that use the ids, including those of unreadable files that
+   * aren't stored
+   * @throws SQLException
+   */
+  private void putNextId() throws SQLException {
+    mergeNextId.setString(1, Integer.toString(App.id.get() + 1));
+    mergeNextId.execute();
+  }
+
+  private void rollback() {
+    try {
+      deleteSignature.clearBatch();
+      deleteUnreadable.clearBatch();
+      insertSignature.clearBatch();
+      mergeUnreadable.clearBatch();
+      conn.rollback();
+    } catch (SQLException e) {
+      System.err.println("signature writer rollback failed " + e);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package app;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The similar images gathered into groups, the connected components of the similar pairs.
+ *
+ * <p>A burst of n near identical shots is n(n-1)/2 similar pairs, each verified and reported on
+ * its own. The pairs are joined in a union-find by image id (path halving and union by size) so
+ * the burst is one group. Once 2 images are in the same group the pairs between them needn't be
+ * verified to know they're in it, so verification of those pairs can be skipped: a burst then
+ * costs about n verifications instead of n(n-1)/2.
+ *
+ * <p>The pairs are joined, and whether a pair is skipped decided, as they're recorded in the order
+ * they were found, so the pairs skipped are the same whatever order the verification threads
+ * finish in. A verification thread can check early that a pair's images are already together, and
+ * not verify it, since only the pairs before it have been joined then; a pair it verifies that the
+ * pairs before it turn out to have joined is still skipped when it's recorded.
+ *
+ * <p>The groups are written one to a line: the number of images, their ids and their filenames.
+ */
+class SimilarGroups {
+
+  static final String GROUPS_FILE = "similarGroups.txt";
+
+  private int[] parent = new int[0]; // by image id; 0 for an image in no group
+  private int[] size = new int[0]; // images in the group of a root
+  private final Map<Integer, String> filenames = new HashMap<Integer, String>(); // of the images in groups
+  private long joined; // pairs that joined 2 groups
+  private long skipped; // pairs not kept as verified since they were already in the same group
+
+  /**
+   * Join the groups of a pair of similar images
+   * @param pair verified similar
+   */
+  synchronized void join(SimilarPair pair) {
+    if (pair.idA <= 0 || pair.idB <= 0) {
+      return; // a query image isn't in the index
+    }
+    filenames.put(pair.idA, pair.filenameA);
+    filenames.put(pair.idB, pair.filenameB);
+    int rootA = find(pair.idA);
+    int rootB = find(pair.idB);
+    if (rootA == rootB) {
+      return;
+    }
+    if (size[rootA] < size[rootB]) {
+      int smaller = rootA;
+      rootA = rootB;
+      rootB = smaller;
+    }
+    parent[rootB] = rootA;
+    size[rootA] += size[rootB];
+    joined++;
+  }
+
+  /**
+   * Check if a pair needn't be verified since its images are already in the same group
+   * @param pair with similar signatures
+   * @return true if they are
+   */
+  synchronized boolean together(SimilarPair pair) {
+    return pair.idA > 0 && pair.idB > 0 && Math.max(pair.idA, pair.idB) < parent.length && parent[pair.idA] != 0
+      && parent[pair.idB] != 0 && find(pair.idA) == find(pair.idB);
+  }
+
+  /**
+   * Decide if a pair is skipped as it's recorded, in the order the pairs were found
+   * @param pair with similar signatures, verified or not
+   * @return true if its images are already in the same group; counted as skipped
+   */
+  synchronized boolean skip(SimilarPair pair) {
+    if (!together(pair)) {
+      return false;
+    }
+    skipped++;
+    return true;
+  }
+
+  /**
+   * Root of the group of an image, added as a group of its own the first time
+   * @param id primary key in DB of the image
+   * @return id of the root
+   */
+  private int find(int id) {
+    if (id >= parent.length) {
+      int length = Math.max(id + 1, parent.length * 2);
+      parent = Arrays.copyOf(parent, length);
+      size = Arrays.copyOf(size, length);
+    }
+    if (parent[id] == 0) {
+      parent[id] = id;
+      size[id] = 1;
+    }
+    while (parent[id] != id) {
+      parent[id] = parent[parent[id]]; // path halving
+      id = parent[id];
+    }
+    return id;
+  }
+
+  /**
+   * Write the groups, the one with the smallest image id first and each image in id order
+   * @return number of groups
+   * @throws FileNotFoundException
+   */
+  synchronized int write() throws FileNotFoundException {
+    TreeMap<Integer, List<Integer>> groups = new TreeMap<Integer, List<Integer>>(); // by smallest id
+    Map<Integer, List<Integer>> byRoot = new HashMap<Integer, List<Integer>>();
+    for (int id = 1; id < parent.length; id++) {
+      if (parent[id] != 0) {
+        List<Integer> group = byRoot.get(find(id));
+        if (group == null) {
+          group = new ArrayList<Integer>();
+          byRoot.put(find(id), group);
+          groups.put(id, group); // ids are in order so the first is the smallest
+        }
+        group.add(id);
+      }
+    }
+
+    try (PrintStream out = new PrintStream(GROUPS_FILE)) {
+      for (List<Integer> group : groups.values()) {
+        StringBuilder ids = new StringBuilder();
+        StringBuilder names = new StringBuilder();
+        for (int id : group) {
+          ids.append(ids.length() == 0 ? "" : ":").append(id);
+          names.append(names.length() == 0 ? "" : " || ").append(filenames.get(id));
+        }
+        out.format("%d, %s, %s\n", group.size(), ids, names);
+      }
+    }
+    return groups.size();
+  }
+
+  /**
+   * @return groups made and verifications skipped for the log
+   */
+  synchronized String report() {
+    return String.format("Similar images grouped by %d pairs into %d groups of %d images, %d verifications skipped",
+      joined, filenames.size() - joined, filenames.size(), skipped);
+  }
+}
@@ -0,0 +1,31 @@
+package app;
+
+/**
+ * A pair of images with similar signatures and the result of verifying them.
+ *
+ * <p>Made for each pair of signatures within maxDifferences, verified by MSSIM and SIFT as
+ * requested, then reported if similar. Kept in the SimilarPair table so later runs only compare
+ * the new images.
+ */
+class SimilarPair {
+
+  final int idA; // primary key in DB of the image with the smaller id
+  final String filenameA;
+  final int idB;
+  final String filenameB;
+  final int similarity; // weighted Hamming distance of the signatures
+  double mssim; // 0 if not computed
+  int features; // matching SIFT features; 0 if not computed
+  boolean similar; // verified similar
+  boolean failed; // couldn't be verified, maybe an image couldn't be read; tried again next run
+  boolean grouped; // skipped since the images were already in the same group; kept as inferred
+  long sequence; // order found by the comparison
+
+  SimilarPair(int idA, String filenameA, int idB, String filenameB, int similarity) {
+    this.idA = idA;
+    this.filenameA = filenameA;
+    this.idB = idB;
+    this.filenameB = filenameB;
+    this.similarity = similarity;
+  }
+}
@@ -0,0 +1,153 @@
+package app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * The MSSIM thumbnails of the images being verified with their statistics, least recently used
+ * dropped first.
+ *
+ * <p>MSSIM only looks at a small grayscale thumbnail but an image with many similar signatures
+ * was read again for each of its pairs, and the terms of MSSIM that only depend on the image were
+ * computed again too. The thumbnail and those terms are made the first time an image is verified
+ * and kept by its id within a byte budget so the image file is only read again if SIFT needs it.
+ * With a ThumbnailStore the thumbnail comes from the store instead of the image file, and the
+ * thumbnails that weren't in the store are added to it.
+ * The verification threads share the statistics read only. They're plain arrays made by FastSSIM so
+ * a dropped entry is simply garbage collected.
+ */
+class ThumbnailCache {
+
+  private final long budget; // bytes of statistics kept
+  private long bytes; // bytes of statistics in the cache
+  private long hits;
+  private long misses;
+  private long stored; // misses with the thumbnail in the store
+  private ThumbnailStore store; // thumbnails of the indexed images; null for none
+  private final LinkedHashMap<Integer, MSSIM.Statistics> statistics =
+    new LinkedHashMap<Integer, MSSIM.Statistics>(16, 0.75f, true);
+
+  /**
+   * @param budget bytes of statistics kept; 0 keeps none
+   */
+  ThumbnailCache(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Take the thumbnails from a store and add the ones that aren't in it
+   * @param store
+   */
+  synchronized void use(ThumbnailStore store) {
+    this.store = store;
+  }
+
+  /**
+   * The MSSIM statistics of an image from the cache, the store or read from its file
+   * @param id primary key in DB of the image
+   * @param filename
+   * @return statistics of the image's thumbnail, not to be changed or released
+   */
+  MSSIM.Statistics get(int id, String filename) {
+    ThumbnailStore store;
+    synchronized (this) {
+      MSSIM.Statistics cached = statistics.get(id);
+      if (cached != null) {
+        hits++;
+        return cached;
+      }
+      misses++;
+      store = this.store;
+    }
+
+    MSSIM.Statistics computed;
+    // the stored thumbnail is only of this image if the file is the same version
+    File file = new File(filename);
+    long size = file.length();
+    long modified = file.lastModified();
+    ByteBuffer pixels = stored(store, id, size, modified);
+    if (pixels != null) {
+      synchronized (this) {
+        stored++;
+      }
+      computed = new MSSIM.Statistics(pixels, ThumbnailStore.SIZE, ThumbnailStore.SIZE);
+    }
+    else {
+      Mat image = Imgcodecs.imread(filename, Imgcodecs.IMREAD_UNCHANGED);
+      Mat thumbnail = null;
+      try {
+        if (image.empty()) {
+          throw new IllegalArgumentException("Cannot read image " + filename);
+        }
+        thumbnail = MSSIM.thumbnail(image);
+        store(store, id, size, modified, thumbnail);
+        computed = new MSSIM.Statistics(thumbnail);
+      } finally {
+        image.release();
+        if (thumbnail != null) {
+          thumbnail.release();
+        }
+      }
+    }
+    put(id, computed);
+    return computed;
+  }
+
+  /**
+   * @return pixels of the thumbnail from the store or null if it isn't there
+   */
+  private static ByteBuffer stored(ThumbnailStore store, int id, long size, long modified) {
+    try {
+      return store == null ? null : store.get(id, size, modified);
+    } catch (IOException e) {
+      System.err.println("Cannot read thumbnail " + id + " from " + ThumbnailStore.STORE_FILE + " " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Add a thumbnail that wasn't in the store
+   */
+  private static void store(ThumbnailStore store, int id, long size, long modified, Mat thumbnail) {
+    try {
+      if (store != null) {
+        store.put(id, size, modified, thumbnail);
+      }
+    } catch (IOException e) {
+      System.err.println("Cannot write thumbnail " + id + " to " + ThumbnailStore.STORE_FILE + " " + e);
+    }
+  }
+
+  /**
+   * Keep the statistics of an image, dropping the least recently used to stay within the budget
+   * @param id
+   * @param computed
+   */
+  private synchronized void put(int id, MSSIM.Statistics computed) {
+    MSSIM.Statistics replaced = statistics.put(id, computed);
+    bytes += computed.bytes();
+    if (replaced != null) { // another thread read the same image
+      bytes -= replaced.bytes();
+    }
+    Iterator<Map.Entry<Integer, MSSIM.Statistics>> eldest = statistics.entrySet().iterator();
+    while (bytes > budget && eldest.hasNext()) {
+      bytes -= eldest.next().getValue().bytes();
+      eldest.remove();
+    }
+  }
+
+  /**
+   * @return hits, misses and size for the log
+   */
+  synchronized String report() {
+    return String.format("Thumbnail cache %d hits, %d misses (%.0f%% hit), %d from the store, %d thumbnails in %d KB of %d KB",
+      hits, misses, 100. * hits / Math.max(1, hits + misses), stored, statistics.size(), bytes >> 10, budget >> 10);
+  }
+}
@@ -0,0 +1,159 @@
+package app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * The MSSIM thumbnails of the indexed images in a memory mapped file kept between runs.
+ *
+ * <p>The ingest already has each image decoded for its signature so it makes the thumbnail too
+ * and verification never has to read an image file for MSSIM. The file is fixed size records
+ * indexed by image id: a header of the id, the width and height, a valid flag and the size and
+ * last modified time of the image file, then the grayscale pixels. It's mapped in segments as it
+ * grows. A thumbnail is written into the mapping and its pixels are read straight from it. Only
+ * writing maps past the end of the file, so looking up a thumbnail that was never kept doesn't
+ * grow it.
+ *
+ * <p>A thumbnail is only used if the image file still has the size and modified time it was made
+ * from, so a record left by a file that was changed or deleted, or by an id handed out in a run
+ * that didn't finish, isn't taken for another image. Only 8-bit thumbnails are kept; other images
+ * are read from their files as before.
+ */
+class ThumbnailStore {
+
+  static final String STORE_FILE = "signature.thumbnails";
+  static final int SIZE = MSSIM.THUMBNAIL_SIZE;
+  static final int HEADER_BYTES = 32; // id, width, height, valid, file size, file modified
+  static final int PIXEL_BYTES = SIZE * SIZE;
+  static final int RECORD_BYTES = HEADER_BYTES + PIXEL_BYTES;
+  static final int SEGMENT_RECORDS = 1024; // records in each mapping, 16 MB
+  static final long SEGMENT_BYTES = (long) SEGMENT_RECORDS * RECORD_BYTES;
+  private static final int VALID = 1; // set once the record is written
+
+  private final FileChannel channel;
+  private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+  /**
+   * Open the store of previous runs or create it
+   * @param file
+   * @throws IOException
+   */
+  @SuppressWarnings("resource") // the channel closes the file
+  ThumbnailStore(File file) throws IOException {
+    channel = new RandomAccessFile(file, "rw").getChannel();
+  }
+
+  /**
+   * Delete the store when the ids start again
+   */
+  static void discard() {
+    new File(STORE_FILE).delete();
+  }
+
+  /**
+   * The mapping holding a record, mapped the first time it's needed
+   * @param id
+   * @param write the record is to be written; mapping past the end of the file extends it
+   * @return mapping of the segment; null if it's only read and isn't in the file
+   * @throws IOException
+   */
+  private synchronized MappedByteBuffer segment(int id, boolean write) throws IOException {
+    int segment = id / SEGMENT_RECORDS;
+    while (segments.size() <= segment) {
+      segments.add(null);
+    }
+    if (segments.get(segment) == null) {
+      long start = segment * SEGMENT_BYTES;
+      if (!write && start + SEGMENT_BYTES > channel.size()) {
+        return null; // none of its records were written
+      }
+      segments.set(segment, channel.map(FileChannel.MapMode.READ_WRITE, start, SEGMENT_BYTES));
+    }
+    return segments.get(segment);
+  }
+
+  /**
+   * Keep the thumbnail of an image
+   * @param id primary key in DB of the image; 0, not in the index, isn't kept
+   * @param size of the image file
+   * @param modified last modified time of the image file
+   * @param thumbnail MSSIM.thumbnail() of the image
+   * @return false if it isn't an 8-bit thumbnail
+   * @throws IOException
+   */
+  boolean put(int id, long size, long modified, Mat thumbnail) throws IOException {
+    if (id <= 0 || thumbnail.type() != CvType.CV_8UC1 || thumbnail.rows() != SIZE || thumbnail.cols() != SIZE) {
+      return false;
+    }
+    MappedByteBuffer mapping = segment(id, true);
+    int record = id % SEGMENT_RECORDS * RECORD_BYTES;
+    mapping.putInt(record + 12, 0); // not valid while it's written
+    Mat pixels = new Mat(SIZE, SIZE, CvType.CV_8UC1, pixels(mapping, record).slice());
+    thumbnail.copyTo(pixels); // same size and type so into the mapping
+    pixels.release();
+    mapping.putInt(record, id);
+    mapping.putInt(record + 4, SIZE);
+    mapping.putInt(record + 8, SIZE);
+    mapping.putLong(record + 16, size);
+    mapping.putLong(record + 24, modified);
+    mapping.putInt(record + 12, VALID);
+    return true;
+  }
+
+  /**
+   * The thumbnail of an image
+   * @param id primary key in DB of the image
+   * @param size of the image file now
+   * @param modified last modified time of the image file now
+   * @return SIZE x SIZE pixels of the thumbnail, a view of the mapping to be read before the store is
+   * closed; null if not kept or not of this version of the file
+   * @throws IOException
+   */
+  ByteBuffer get(int id, long size, long modified) throws IOException {
+    if (id <= 0) {
+      return null;
+    }
+    MappedByteBuffer mapping = segment(id, false);
+    if (mapping == null) {
+      return null;
+    }
+    int record = id % SEGMENT_RECORDS * RECORD_BYTES;
+    if (mapping.getInt(record + 12) != VALID || mapping.getInt(record) != id || mapping.getInt(record + 4) != SIZE
+        || mapping.getInt(record + 8) != SIZE || mapping.getLong(record + 16) != size
+        || mapping.getLong(record + 24) != modified) {
+      return null;
+    }
+    return pixels(mapping, record).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * @return the pixels of a record; a view so threads don't share a position
+   */
+  private static ByteBuffer pixels(MappedByteBuffer mapping, int record) {
+    ByteBuffer pixels = mapping.duplicate();
+    pixels.position(record + HEADER_BYTES).limit(record + RECORD_BYTES);
+    return pixels;
+  }
+
+  /**
+   * Write the mappings to the file
+   * @throws IOException
+   */
+  synchronized void close() throws IOException {
+    for (MappedByteBuffer mapping : segments) {
+      if (mapping != null) {
+        mapping.force();
+      }
+    }
+    channel.close();
+  }
+}
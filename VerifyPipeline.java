@@ -0,0 +1,118 @@
+package app;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Verifies the pairs with similar signatures on a pool of threads while the comparison goes on.
+ *
+ * <p>The comparison puts the candidate pairs on a bounded queue, blocking when the workers are
+ * behind. The workers read the images and run MSSIM and SIFT, the slow part, and hand the results
+ * to a single output thread that writes them. The output thread puts the pairs back in the order
+ * they were found so the results are the same as verifying them one at a time. Anything decided
+ * from the pairs before a pair, such as whether its images are already in a group, is decided by
+ * the record on the output thread.
+ */
+class VerifyPipeline {
+
+  private static final SimilarPair END_OF_PAIRS = new SimilarPair(0, null, 0, null, 0);
+
+  private final BlockingQueue<SimilarPair> candidates; // pairs waiting for a worker
+  private final BlockingQueue<SimilarPair> verified; // results waiting for the output
+  private final Thread[] workers;
+  private final Thread output;
+  private long sequence; // pairs put so far
+
+  /**
+   * Start the worker and output threads
+   * @param threads verification workers
+   * @param capacity pairs that can be waiting before the comparison blocks
+   * @param verify verifies a pair, setting its results
+   * @param record writes the result of a verified pair
+   */
+  VerifyPipeline(int threads, int capacity, Consumer<SimilarPair> verify, Consumer<SimilarPair> record) {
+    candidates = new ArrayBlockingQueue<SimilarPair>(Math.max(1, capacity));
+    verified = new ArrayBlockingQueue<SimilarPair>(Math.max(1, capacity));
+
+    workers = new Thread[Math.max(1, threads)];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Thread(() -> {
+        try {
+          SimilarPair pair;
+          while ((pair = candidates.take()) != END_OF_PAIRS) {
+            try {
+              verify.accept(pair);
+            } catch (Exception e) {
+              pair.similar = false;
+              pair.failed = true;
+              System.err.format("\n\n\nException thrown - Cannot verify images %d:%d %s || %s  %s\n\n\n", pair.idA,
+                pair.idB, pair.filenameA, pair.filenameB, e.toString());
+            }
+            verified.put(pair);
+          }
+          verified.put(END_OF_PAIRS);
+        } catch (InterruptedException e) {
+          System.err.println("verification interrupted " + e);
+        }
+      }, "verify " + i);
+      workers[i].start();
+    }
+
+    output = new Thread(() -> {
+      // results that came before an earlier pair finished
+      Map<Long, SimilarPair> waiting = new HashMap<Long, SimilarPair>();
+      long next = 0;
+      int running = workers.length;
+      try {
+        while (running > 0) {
+          SimilarPair pair = verified.take();
+          if (pair == END_OF_PAIRS) {
+            running--;
+            continue;
+          }
+          waiting.put(pair.sequence, pair);
+          while ((pair = waiting.remove(next)) != null) {
+            try {
+              record.accept(pair);
+            } catch (Exception e) {
+              System.err.format("\n\n\nException thrown - Cannot record images %d:%d %s || %s  %s\n\n\n", pair.idA,
+                pair.idB, pair.filenameA, pair.filenameB, e.toString());
+            }
+            next++;
+          }
+        }
+      } catch (InterruptedException e) {
+        System.err.println("verification output interrupted " + e);
+      }
+    }, "verify output");
+    output.start();
+  }
+
+  /**
+   * Queue a pair for verification. Blocks while the workers are behind. Only the comparison
+   * thread puts pairs.
+   * @param pair
+   * @throws InterruptedException
+   */
+  void put(SimilarPair pair) throws InterruptedException {
+    pair.sequence = sequence++;
+    candidates.put(pair);
+  }
+
+  /**
+   * Verify and write everything queued
+   * @throws InterruptedException
+   */
+  void close() throws InterruptedException {
+    for (int i = 0; i < workers.length; i++) {
+      candidates.put(END_OF_PAIRS);
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    output.join();
+  }
+}
@@ -0,0 +1,84 @@
+package app;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Orders the pairs with similar signatures so the verification reads each image as few times as
+ * possible.
+ *
+ * <p>The comparison finds the pairs in id order, and the ids are in the order the walk threads
+ * found the files, so an image's pairs are spread out. By the time it's needed again its thumbnail
+ * and descriptors may have been dropped from the caches. Reading it again also jumps back across
+ * the disk. Here the images are ranked by path, which is close to the order they are on the disk and
+ * keeps the images of a directory together. Starting from each image in path order, all of its
+ * pairs not yet verified are verified together while it's in the caches. Then the images it was
+ * paired with are visited the same way, nearest in path first, while they're still in the caches
+ * too (a breadth first search of the pairs). A group of similar images is then verified together
+ * even when its images are in different directories.
+ */
+class VerifySchedule {
+
+  /**
+   * Put the pairs in the order to verify them
+   * @param pairs all the candidates, reordered in place
+   */
+  static void byPath(List<SimilarPair> pairs) {
+    Map<Integer, String> filenames = new HashMap<Integer, String>();
+    Map<Integer, List<Integer>> pairsOf = new HashMap<Integer, List<Integer>>(); // indexes of the pairs of an image
+    for (int i = 0; i < pairs.size(); i++) {
+      SimilarPair pair = pairs.get(i);
+      filenames.put(pair.idA, pair.filenameA);
+      filenames.put(pair.idB, pair.filenameB);
+      pairsOf.computeIfAbsent(pair.idA, id -> new ArrayList<Integer>()).add(i);
+      pairsOf.computeIfAbsent(pair.idB, id -> new ArrayList<Integer>()).add(i);
+    }
+    List<Integer> ids = new ArrayList<Integer>(filenames.keySet());
+    ids.sort(Comparator.comparing((Integer id) -> filenames.get(id)).thenComparing(id -> id));
+    Map<Integer, Integer> rank = new HashMap<Integer, Integer>();
+    for (int id : ids) {
+      rank.put(id, rank.size());
+    }
+
+    List<SimilarPair> ordered = new ArrayList<SimilarPair>(pairs.size());
+    boolean[] scheduled = new boolean[pairs.size()];
+    Set<Integer> visited = new HashSet<Integer>();
+    ArrayDeque<Integer> next = new ArrayDeque<Integer>(); // images paired with the ones visited
+    for (int start : ids) {
+      if (!visited.add(start)) {
+        continue;
+      }
+      next.add(start);
+      while (!next.isEmpty()) {
+        int id = next.remove();
+        List<Integer> pairsOfId = pairsOf.get(id);
+        pairsOfId.sort(Comparator.comparing(i -> rank.get(other(pairs.get(i), id))));
+        for (int i : pairsOfId) {
+          if (!scheduled[i]) {
+            scheduled[i] = true;
+            ordered.add(pairs.get(i));
+            int other = other(pairs.get(i), id);
+            if (visited.add(other)) {
+              next.add(other);
+            }
+          }
+        }
+      }
+    }
+    pairs.clear();
+    pairs.addAll(ordered);
+  }
+
+  /**
+   * @return id of the image of a pair that isn't the given one
+   */
+  private static int other(SimilarPair pair, int id) {
+    return pair.idA == id ? pair.idB : pair.idA;
+  }
+}
@@ -0,0 +1,71 @@
+package app;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Compare one signature to a block of signatures with the Vector API.
+ *
+ * <p>The signatures are struct of arrays so a vector holds the same word of consecutive rows. The
+ * row's word is broadcast and XORed with them, the lanes' bits counted, Y + (U+V)/4 summed in the
+ * lanes and compared to maxDifferences for a mask of the similar rows, all in vector registers.
+ * The lanes are as wide as the hardware allows: 4 rows with AVX2, 8 with AVX-512.
+ *
+ * <p>The bits are counted by the SWAR shifts and masks; there's no vector bit count operator in the
+ * Java 17 incubator. The rows left over at the end of a block that don't fill a vector use the
+ * scalar kernel.
+ *
+ * <p>Only loaded by HammingKernel.create() if jdk.incubator.vector is available. Compiled on its own
+ * on JDK 16 or later, after the other classes, with --add-modules jdk.incubator.vector.
+ */
+class VectorHamming extends HammingKernel {
+
+  private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+  @Override
+  void compare(SignatureIndex index, int a, int from, int to, int maxDifferences, PairScan.PairList pairs) {
+    int words = index.words;
+    int lanes = SPECIES.length();
+    int b = from;
+
+    for (; b <= to - lanes; b += lanes) {
+      LongVector y = LongVector.zero(SPECIES);
+      LongVector uv = LongVector.zero(SPECIES);
+      for (int word = 0; word < words; word++) {
+        long[] yWord = index.hash[word];
+        long[] uWord = index.hash[words + word];
+        long[] vWord = index.hash[2 * words + word];
+        y = y.add(bitCount(LongVector.fromArray(SPECIES, yWord, b).lanewise(VectorOperators.XOR, yWord[a])));
+        uv = uv.add(bitCount(LongVector.fromArray(SPECIES, uWord, b).lanewise(VectorOperators.XOR, uWord[a])))
+          .add(bitCount(LongVector.fromArray(SPECIES, vWord, b).lanewise(VectorOperators.XOR, vWord[a])));
+      }
+      // counts aren't negative so the shift is the integer divide by 4
+      VectorMask<Long> similar = y.add(uv.lanewise(VectorOperators.LSHR, 2)).compare(VectorOperators.LE, maxDifferences);
+
+      for (long lane = similar.toLong(); lane != 0; lane &= lane - 1) {
+        pairs.add(PairScan.pair(a, b + Long.numberOfTrailingZeros(lane)));
+      }
+    }
+
+    super.compare(index, a, b, to, maxDifferences, pairs);
+  }
+
+  /**
+   * Count the 1 bits of each lane
+   * @param x
+   * @return bit counts
+   */
+  private static LongVector bitCount(LongVector x) {
+    x = x.sub(x.lanewise(VectorOperators.LSHR, 1).and(0x5555555555555555L));
+    x = x.and(0x3333333333333333L).add(x.lanewise(VectorOperators.LSHR, 2).and(0x3333333333333333L));
+    x = x.add(x.lanewise(VectorOperators.LSHR, 4)).and(0x0F0F0F0F0F0F0F0FL);
+    return x.mul(0x0101010101010101L).lanewise(VectorOperators.LSHR, 56);
+  }
+
+  @Override
+  String name() {
+    return "vector " + SPECIES.length() + " x 64 bits";
+  }
+}